@@ -1,24 +1,30 @@
 import javax.swing.*;
-import java.awt.BasicStroke;
 import java.awt.Color;
 import java.awt.Dimension;
 import java.awt.Graphics;
 import java.awt.Graphics2D;
 import java.awt.Point;
+import java.awt.Rectangle;
 import java.awt.RenderingHints;
 import java.awt.Stroke;
 import java.awt.event.*;
 import java.util.ArrayList;
-import java.util.Comparator;
+import java.util.Collections;
 import java.util.EnumMap;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.function.Consumer;
+import java.util.Set;
 
 import dialog.LabelStyleDialog;
 import link.LinkShape;
 import model.ModelChangeListener;
+import model.ModelChangeSet;
 import model.WorkflowModel;
+import render.LevelOfDetail;
+import render.RenderCache;
+import render.TileCache;
+import render.Viewport;
 import shape.OvalFactory;
 import shape.RectangleFactory;
 import shape.Shape;
@@ -33,17 +39,66 @@ public class CanvasPanel extends JPanel implements
         CreateShapeStrategy.CreateShapeDelegate,
         LinkToolStrategy.LinkToolDelegate,
         ModelChangeListener {
+
+    // 需要委派給主視窗的操作
+    public interface EditorDelegate {
+        String getMode(); // 目前的工具模式名稱
+        void updateEditMenuForSelection(List<Shape> selectedShapes);
+    }
     
     private final WorkflowModel model; // 工作流程的Model
-    private final WorkflowEditor editor; // 指向主視窗的reference
+    private final EditorDelegate editor; // 指向主視窗的reference
     
     // 策略mapping表
     private final Map<ToolMode, ToolStrategy> strategies = new EnumMap<>(ToolMode.class);
     private final Map<ToolMode, LinkToolStrategy> linkStrategies = new EnumMap<>(ToolMode.class);
+    private ToolMode activeMode = ToolMode.SELECT; // 切換工具時才更新，滑鼠事件不需要查表
+    private ToolStrategy activeStrategy;
+
+    // 縮放和平移，滑鼠事件轉成世界座標後才交給策略
+    private static final double ZOOM_STEP = 1.1;
+    private final Viewport viewport = new Viewport();
+    private final Point panAnchor = new Point(); // 中鍵拖曳平移時上一次的位置
+    private boolean panning = false;
+
+    // 細節程度門檻(螢幕像素)：port、label字體、箭頭、composite
+    private LevelOfDetail detailThresholds = new LevelOfDetail(4, 6, 6, 12);
+    private LevelOfDetail lod = detailThresholds;
+
+    // 拖曳事件依畫面更新頻率合併：一個畫面內只保留最後的位置，移動和更新連線每個畫面只做一次
+    // 策略用上一次處理的位置算位移，所以跳過的事件位移會累加在下一次裡
+    private static final int FRAME_INTERVAL_MS = 16;
+    private final Timer dragTimer = new Timer(FRAME_INTERVAL_MS, e -> flushPendingDrag());
+    private MouseEvent pendingDrag = null; // 還沒交給策略的最後一個拖曳事件
+
+    // 累積的重繪範圍(世界座標)，同一輪事件只呼叫一次 repaint(Rectangle)
+    // 滑鼠事件交給策略處理時，結束後直接送出；其他時候(例如選單操作)排一次 damageFlusher 到事件佇列
+    private final Rectangle damageRegion = new Rectangle();
+    private final Rectangle changeDamage = new Rectangle(); // 讀取交易變更的重繪範圍時重複使用
+    private final Rectangle tileDamage = new Rectangle(); // 轉成 view 座標的失效範圍
+    private final Rectangle screenDamage = new Rectangle(); // 轉成螢幕座標的重繪範圍
+    private boolean damagePending = false;
+    private boolean dispatching = false; // 正在把滑鼠事件交給策略
+    private boolean damageFlushPosted = false; // damageFlusher 已經排進事件佇列還沒執行
+    private final Runnable damageFlusher = () -> {
+        damageFlushPosted = false;
+        flushDamage();
+    };
+
+    // 靜態圖層(所有shape和連線)的圖塊快取
+    private static final int MAX_CACHED_TILES = 128;
+    private final TileCache tileCache = new TileCache(MAX_CACHED_TILES, Color.WHITE);
+    private final TileCache.TileRenderer sceneRenderer = this::renderScene;
+    private final List<Shape> visibleShapes = new ArrayList<>(); // 繪製圖塊時重複使用
+    private final List<LinkShape> visibleLinks = new ArrayList<>();
+
+    // 拖曳時的浮動圖層：被拖曳的shape和它的連線不進圖塊，每次直接畫在上面
+    private Shape overlayShape = null;
+    private final Set<LinkShape> overlayLinks = Collections.newSetFromMap(new IdentityHashMap<>());
 
     // 建立CanvasPanel
     // @param editor 工作流程編輯器
-    public CanvasPanel(WorkflowEditor editor) {
+    public CanvasPanel(EditorDelegate editor) {
         this.editor = editor;
         this.model = new WorkflowModel();
         this.model.addModelChangeListener(this);
@@ -51,9 +106,11 @@ public class CanvasPanel extends JPanel implements
         setBackground(Color.WHITE);
         setPreferredSize(new Dimension(500, 350));
         setBorder(BorderFactory.createLineBorder(Color.BLACK, 1));
+        dragTimer.setRepeats(false);
         
         // 初始化策略
         initializeStrategies();
+        setToolMode(ToolMode.fromString(editor.getMode()));
         
         // 添加滑鼠事件監聽器
         addMouseListener(new MouseAdapter() {
@@ -74,6 +131,9 @@ public class CanvasPanel extends JPanel implements
                 handleMouseDragged(e);
             }
         });
+
+        // 滾輪以游標為中心縮放
+        addMouseWheelListener(e -> zoomAt(e.getX(), e.getY(), Math.pow(ZOOM_STEP, -e.getPreciseWheelRotation())));
     }
     
     // 初始化策略物件，使用工廠模式創建shape
@@ -98,64 +158,213 @@ public class CanvasPanel extends JPanel implements
         }
     }
     
-    // 處理滑鼠事件
-    // consumer為java內建的func interface
-    // public interface Consumer<T> { // accept(要傳入的參數型別為T)
-    //    void accept(T t); // 接受一個參數，不返回值
-    // }
-    private boolean handleMouseEvent(MouseEvent e, Consumer<ToolStrategy> handler) { // accept(要傳入的參數型別為ToolStrategy)
-        ToolMode mode = ToolMode.fromString(editor.getMode());
-        ToolStrategy strategy = strategies.get(mode); // map會去找跟mode符合的key
-        if (strategy != null) {
-            handler.accept(strategy); // 會call strategy.handleMousePressed(e)等等
-            return true;
-        }
-        return false;
+    // 切換工具，由編輯器在模式改變時呼叫
+    public void setToolMode(ToolMode mode) {
+        activeMode = mode;
+        activeStrategy = strategies.get(mode);
+        repaint(); // 清掉上一個工具的預覽
+    }
+
+    // 把事件交給目前的策略，依事件種類呼叫對應的方法
+    // 策略和model只處理世界座標：暫時把事件的座標換成世界座標，處理完再換回來，不需要建立新的事件
+    // 處理期間累積的重繪範圍在結束時直接送出，不經過事件佇列
+    boolean dispatchToStrategy(MouseEvent e) {
+        ToolStrategy strategy = activeStrategy;
+        if (strategy == null) {
+            return false;
+        }
+        int dx = viewport.toWorldX(e.getX()) - e.getX();
+        int dy = viewport.toWorldY(e.getY()) - e.getY();
+        e.translatePoint(dx, dy);
+        dispatching = true;
+        try {
+            switch (e.getID()) {
+                case MouseEvent.MOUSE_PRESSED:
+                    return strategy.handleMousePressed(e);
+                case MouseEvent.MOUSE_DRAGGED:
+                    return strategy.handleMouseDragged(e);
+                case MouseEvent.MOUSE_RELEASED:
+                    return strategy.handleMouseReleased(e);
+                default:
+                    return false;
+            }
+        } finally {
+            e.translatePoint(-dx, -dy);
+            dispatching = false;
+            flushDamage();
+        }
     }
     
     private void handleMousePressed(MouseEvent e) { // 處理滑鼠按下事件
-        handleMouseEvent(e, strategy -> strategy.handleMousePressed(e)); // Lambda 表達式，compile還不知道strategy
+        if (SwingUtilities.isMiddleMouseButton(e)) { // 中鍵拖曳平移畫面
+            panAnchor.setLocation(e.getX(), e.getY());
+            panning = true;
+            return;
+        }
+        dispatchToStrategy(e);
     }
     
     private void handleMouseDragged(MouseEvent e) { // 處理滑鼠拖曳事件
-        handleMouseEvent(e, strategy -> strategy.handleMouseDragged(e));
+        if (panning) {
+            panBy(e.getX() - panAnchor.x, e.getY() - panAnchor.y);
+            panAnchor.setLocation(e.getX(), e.getY());
+            return;
+        }
+        if (dragTimer.isRunning()) { // 這個畫面已經處理過拖曳，等計時器到了再處理
+            pendingDrag = e;
+            return;
+        }
+        dispatchToStrategy(e);
+        dragTimer.start();
+    }
+
+    private void flushPendingDrag() { // 處理合併後的拖曳事件，還有新的事件時繼續計時
+        MouseEvent drag = pendingDrag;
+        if (drag == null) {
+            return;
+        }
+        pendingDrag = null;
+        dispatchToStrategy(drag);
+        dragTimer.restart();
     }
     
     private void handleMouseReleased(MouseEvent e) { // 處理滑鼠放開事件
-        handleMouseEvent(e, strategy -> strategy.handleMouseReleased(e));
+        if (panning) {
+            if (SwingUtilities.isMiddleMouseButton(e)) {
+                panning = false;
+            }
+            return;
+        }
+        dragTimer.stop(); // 放開前先處理最後的拖曳位置，放開的位置不合併
+        flushPendingDrag();
+        dragTimer.stop();
+        dispatchToStrategy(e);
+    }
+
+    private void panBy(int dx, int dy) { // 平移不影響圖塊內容，只需要重繪
+        viewport.pan(dx, dy);
+        repaint();
+    }
+
+    private void zoomAt(int screenX, int screenY, double factor) { // 縮放後圖塊要全部重新產生
+        if (viewport.zoomAt(screenX, screenY, factor)) {
+            lod = detailThresholds.atScale(viewport.getScale());
+            tileCache.invalidateAll();
+            repaint();
+        }
+    }
+
+    // 設定細節程度的門檻，縮放時自動依目前比例切換
+    public void setLevelOfDetail(LevelOfDetail thresholds) {
+        detailThresholds = thresholds;
+        lod = thresholds.atScale(viewport.getScale());
+        tileCache.invalidateAll();
+        repaint();
     }
 
     @Override
     protected void paintComponent(Graphics g) {
         super.paintComponent(g);
         Graphics2D g2d = (Graphics2D) g;
-        g2d.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
 
-        // 收集所有連線port以顯示
-        List<Point> allLinkedPorts = new ArrayList<>();
-        for (LinkShape link : model.getAllLinks()) {
-            if (link.getStart() != null) allLinkedPorts.add(link.getStart());
-            if (link.getEnd() != null) allLinkedPorts.add(link.getEnd());
+        // 靜態圖層直接貼上快取的圖塊(view 座標)
+        Rectangle clip = g2d.getClipBounds();
+        if (clip == null) {
+            clip = new Rectangle(0, 0, getWidth(), getHeight());
         }
+        Rectangle viewClip = viewport.screenToView(clip);
+        Graphics2D view = (Graphics2D) g2d.create();
+        try {
+            view.translate(-viewport.getOriginX(), -viewport.getOriginY());
+            tileCache.paint(view, viewClip, sceneRenderer);
 
-        // 繪製所有shape(按深度排序)
-        model.getAllShapes().stream()
-            .sorted(Comparator.comparingInt(Shape::getDepth))
-            .forEach(shape -> {
-                boolean isSelected = model.getSelectedShapes().contains(shape);
-                shape.draw(g2d, isSelected, allLinkedPorts);
-            });
+            // 繪製拖曳中的物件和正在建立的連線路徑(不進快取)
+            view.scale(viewport.getScale(), viewport.getScale());
+            view.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+            drawOverlay(view, viewport.viewToWorld(viewClip));
+            drawCurrentLinkPath(view);
+        } finally {
+            view.dispose();
+        }
+    }
 
-        // 繪製所有連線
-        model.getAllLinks().forEach(link -> link.draw(g2d));
-        
-        // 繪製正在建立的連線路徑
-        drawCurrentLinkPath(g2d);
+    // 繪製 view 座標 area 範圍內的shape和連線，由圖塊快取呼叫
+    // 只從空間索引取出可見範圍內的物件，成本和畫面上的物件數量有關，和整張圖的大小無關
+    private void renderScene(Graphics2D g2d, Rectangle area) {
+        Rectangle world = viewport.viewToWorld(area);
+        g2d.scale(viewport.getScale(), viewport.getScale());
+
+        // 繪製可見的shape(由下往上)
+        visibleShapes.clear();
+        model.getShapesInArea(world, visibleShapes);
+        for (Shape shape : visibleShapes) {
+            if (shape != overlayShape) {
+                shape.draw(g2d, model.isSelected(shape), model.getLinkedPorts(), lod);
+            }
+        }
+        visibleShapes.clear();
+
+        // 繪製可見的連線
+        visibleLinks.clear();
+        model.getLinksInArea(world, visibleLinks);
+        for (LinkShape link : visibleLinks) {
+            if (!overlayLinks.contains(link)) {
+                link.draw(g2d, lod);
+            }
+        }
+        visibleLinks.clear();
+    }
+
+    // 繪製浮動圖層，成本只和拖曳中的物件數量有關
+    private void drawOverlay(Graphics2D g2d, Rectangle clip) {
+        if (overlayShape == null) {
+            return;
+        }
+        if (clip.intersects(overlayShape.getRepaintBounds())) {
+            overlayShape.draw(g2d, model.isSelected(overlayShape), model.getLinkedPorts(), lod);
+        }
+        for (LinkShape link : overlayLinks) {
+            if (clip.intersects(link.getRepaintBounds())) {
+                link.draw(g2d, lod);
+            }
+        }
+    }
+
+    // 開始拖曳：把shape和它的連線從圖塊中移出，其他部分維持凍結
+    @Override
+    public void beginDragOverlay(Shape shape) {
+        overlayShape = shape;
+        overlayLinks.addAll(model.getConnectedLinks(shape));
+        addDamage(overlayBounds());
+    }
+
+    // 結束拖曳：把浮動圖層合併回圖塊
+    @Override
+    public void endDragOverlay() {
+        if (overlayShape == null) {
+            return;
+        }
+        Rectangle bounds = overlayBounds();
+        overlayShape = null;
+        overlayLinks.clear();
+        addDamage(bounds);
+    }
+
+    private Rectangle overlayBounds() {
+        Rectangle bounds = overlayShape.getRepaintBounds();
+        for (LinkShape link : overlayLinks) {
+            bounds.add(link.getRepaintBounds());
+        }
+        return bounds;
+    }
+
+    private boolean isOverlayChange(ModelChangeSet changes) { // 變更是否只有浮動圖層中的物件
+        return overlayShape != null && changes.isOnlyModifying(overlayShape, overlayLinks);
     }
     
     // 繪製正在建立的連線路徑
     private void drawCurrentLinkPath(Graphics2D g2d) {
-        ToolMode mode = ToolMode.fromString(editor.getMode());
+        ToolMode mode = activeMode;
         
         if (!mode.isLinkMode()) {
             return;
@@ -166,7 +375,7 @@ public class CanvasPanel extends JPanel implements
             List<Point> path = currentLinkStrategy.getCurrentPath();
             if (path.size() > 1) {
                 Stroke originalStroke = g2d.getStroke();
-                g2d.setStroke(new BasicStroke(2.0f, BasicStroke.CAP_ROUND, BasicStroke.JOIN_ROUND));
+                g2d.setStroke(RenderCache.getStroke(LinkShape.LINE_WIDTH));
                 g2d.setColor(Color.BLACK);
 
                 for (int i = 0; i < path.size() - 1; i++) {
@@ -178,8 +387,7 @@ public class CanvasPanel extends JPanel implements
                 if (path.size() >= 2) {
                     Point from = path.get(path.size() - 2);
                     Point to = path.get(path.size() - 1);
-                    LinkShape tempLink = new LinkShape(null, null, null, null, mode.getLinkType(), null);
-                    tempLink.drawArrow(g2d, from.x, from.y, to.x, to.y, mode.getLinkType());
+                    LinkShape.drawArrowHead(g2d, from.x, from.y, to.x, to.y, mode.getLinkType());
                 }
                 g2d.setStroke(originalStroke);
             }
@@ -197,41 +405,101 @@ public class CanvasPanel extends JPanel implements
         editor.updateEditMenuForSelection(selectedShapes);
     }
     
+    @Override
+    public void repaintWorld(Rectangle area) { // 重繪不在圖塊裡的預覽
+        addOverlayDamage(area);
+    }
+    
+    // 累積重繪範圍，等目前的事件處理完再一次重繪
+    // 對應的圖塊立即失效，下一次繪製時才重新產生
+    private void addDamage(Rectangle damage) {
+        if (damage != null && !damage.isEmpty()) {
+            tileCache.invalidate(viewport.worldToView(damage, tileDamage));
+        }
+        addOverlayDamage(damage);
+    }
+
+    // 只有浮動圖層改變，圖塊不需要失效
+    private void addOverlayDamage(Rectangle damage) {
+        if (damage == null || damage.isEmpty()) {
+            return;
+        }
+        if (damagePending) {
+            damageRegion.add(damage);
+        } else {
+            damageRegion.setBounds(damage);
+            damagePending = true;
+        }
+        if (!dispatching && !damageFlushPosted) { // 同一個 Runnable 只排一次
+            damageFlushPosted = true;
+            SwingUtilities.invokeLater(damageFlusher);
+        }
+    }
+
+    private void flushDamage() {
+        if (!damagePending) {
+            return;
+        }
+        damagePending = false;
+        repaint(viewport.worldToScreen(damageRegion, screenDamage));
+    }
+
     //  實現 ModelChangeListener 接口的方法
     @Override
-    public void onShapeAdded(Shape shape) { 
-        repaint(); // model更新給View
+    public void onShapeAdded(Shape shape, Rectangle damage) { 
+        addDamage(damage); // model更新給View
     }
     
     @Override
-    public void onShapeRemoved(Shape shape) {
-        repaint();
+    public void onShapeRemoved(Shape shape, Rectangle damage) {
+        addDamage(damage);
     }
     
     @Override
-    public void onShapeModified(Shape shape) {
-        repaint();
+    public void onShapeModified(Shape shape, Rectangle damage) {
+        if (shape == overlayShape) {
+            addOverlayDamage(damage);
+        } else {
+            addDamage(damage);
+        }
     }
     
     @Override
-    public void onLinkAdded(LinkShape link) {
-        repaint();
+    public void onLinkAdded(LinkShape link, Rectangle damage) {
+        addDamage(damage);
     }
     
     @Override
-    public void onLinkRemoved(LinkShape link) {
-        repaint();
+    public void onLinkRemoved(LinkShape link, Rectangle damage) {
+        addDamage(damage);
     }
     
     @Override
-    public void onLinkModified(LinkShape link) {
-        repaint();
+    public void onLinkModified(LinkShape link, Rectangle damage) {
+        if (overlayLinks.contains(link)) {
+            addOverlayDamage(damage);
+        } else {
+            addDamage(damage);
+        }
     }
 
     @Override
-    public void onSelectionChanged(List<Shape> selectedShapes) {
+    public void onSelectionChanged(List<Shape> selectedShapes, Rectangle damage) {
         editor.updateEditMenuForSelection(selectedShapes);
-        repaint();
+        addDamage(damage);
+    }
+
+    @Override
+    public void onModelChanged(ModelChangeSet changes) {
+        if (changes.isSelectionChanged()) {
+            editor.updateEditMenuForSelection(changes.getSelectedShapes());
+        }
+        changes.getDamage(changeDamage);
+        if (isOverlayChange(changes)) {
+            addOverlayDamage(changeDamage);
+        } else {
+            addDamage(changeDamage);
+        }
     }
     
     public void groupSelectedShapes() { // group select到的shape
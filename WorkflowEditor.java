@@ -8,7 +8,7 @@ import shape.ShapeHandler;
 import tool.ToolMode;
 
 // WorkflowEditor 主視窗類別
-public class WorkflowEditor extends JFrame {
+public class WorkflowEditor extends JFrame implements CanvasPanel.EditorDelegate {
     private CanvasPanel canvasPanel;
     private String mode = ToolMode.SELECT.getName(); // 預設模式
     private JButton selectedButton = null; // 紀錄當前選中的按鈕
@@ -138,9 +138,11 @@ public class WorkflowEditor extends JFrame {
 
         // 設定當前模式
         mode = modeName.toLowerCase();
+        canvasPanel.setToolMode(ToolMode.fromString(mode));
     }
 
     // 更新編輯選單
+    @Override
     public void updateEditMenuForSelection(List<Shape> selectedShapes) {
         editMenu.removeAll();
     
@@ -196,6 +198,7 @@ public class WorkflowEditor extends JFrame {
         }
     }
 
+    @Override
     public String getMode() { // 取得當前模式
         return mode;
     }
@@ -0,0 +1,514 @@
+package link;
+
+import java.awt.Point;
+import java.awt.Rectangle;
+import java.awt.geom.Line2D;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+// 正交連線路由，產生只有水平、垂直線段並繞過shape的折線
+// 候選座標只取端點和附近障礙物(外擴 CLEARANCE)的邊緣，組成稀疏的網格(visibility graph)
+// 在網格上用 A* 找路徑，轉彎有額外成本，所以偏好轉彎少的路線
+// 網格、A* 的陣列和路徑都用欄位裡的暫存資料重複使用，繞線不配置物件
+// 因此同一個實例不能在多個執行緒同時使用，平行繞線時每個執行緒各自建立一個
+public class LinkRouter {
+    public static final int CLEARANCE = 16; // 路徑和shape保持的距離，也是端點伸出的長度(不小於箭頭)
+    private static final int SEARCH_MARGIN = 4 * CLEARANCE; // 搜尋範圍比兩端shape多出的距離
+    private static final int BEND_PENALTY = 40; // 每次轉彎相當於多走的距離
+    private static final int MAX_OBSTACLES = 48; // 限制網格大小，障礙物太多時只保留最靠近兩端連線的
+
+    // 方向：右、下、左、上
+    private static final int[] DX = {1, 0, -1, 0};
+    private static final int[] DY = {0, 1, 0, -1};
+
+    // 重複使用的暫存資料，陣列只在不夠大時才換成更大的
+    private final Point exitStart = new Point(); // 端點伸出 CLEARANCE 後的位置
+    private final Point exitEnd = new Point();
+    private final Rectangle area = new Rectangle();
+    private final List<Rectangle> blocks = new ArrayList<>();
+    private final List<Rectangle> blockPool = new ArrayList<>(); // blocks 使用的矩形
+    private double[] obstacleDist = new double[0];
+    private int[] obstacleOrder = new int[0];
+    private int[] xs = new int[16];
+    private int[] ys = new int[16];
+    private int nx, ny; // xs、ys 中有效的數量
+    private boolean[] blockedRight = new boolean[0]; // (i, j) 到 (i + 1, j) 的邊穿過障礙物內部
+    private boolean[] blockedDown = new boolean[0]; // (i, j) 到 (i, j + 1) 的邊穿過障礙物內部
+    private int[] cost = new int[0];
+    private int[] parent = new int[0];
+    private final IntHeap open = new IntHeap();
+    private int[] pathX = new int[16]; // 化簡前的路徑
+    private int[] pathY = new int[16];
+    private int pathLength;
+
+    // 搜尋範圍，只有和這個範圍有交集的shape需要當作障礙物
+    public static Rectangle searchArea(Point start, Rectangle fromBounds, Point end, Rectangle toBounds) {
+        return searchArea(start, fromBounds, end, toBounds, new Rectangle());
+    }
+
+    // 把搜尋範圍寫進 area 並回傳，不建立新的矩形
+    public static Rectangle searchArea(Point start, Rectangle fromBounds, Point end, Rectangle toBounds, Rectangle area) {
+        area.setBounds(start.x, start.y, 0, 0);
+        area.add(end);
+        if (fromBounds != null) {
+            area.add(fromBounds);
+        }
+        if (toBounds != null) {
+            area.add(toBounds);
+        }
+        area.grow(SEARCH_MARGIN, SEARCH_MARGIN);
+        return area;
+    }
+
+    // 路徑是否有線段經過 area(含邊緣)，用來判斷shape改變時哪些連線需要重新繞線
+    public static boolean pathIntersects(List<Point> path, Rectangle area) {
+        int right = area.x + area.width;
+        int bottom = area.y + area.height;
+        for (int i = 0; i + 1 < path.size(); i++) {
+            Point a = path.get(i);
+            Point b = path.get(i + 1);
+            if (Math.max(a.x, b.x) >= area.x && Math.min(a.x, b.x) <= right
+                    && Math.max(a.y, b.y) >= area.y && Math.min(a.y, b.y) <= bottom) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // 計算從 start 到 end 的正交路徑
+    // @param fromBounds 起點所在shape的邊界，決定從哪一邊伸出
+    // @param toBounds 終點所在shape的邊界
+    // @param obstacles 要繞過的shape邊界(不需要包含兩端的shape)
+    // @return 包含起點和終點的轉折點
+    public List<Point> route(Point start, Rectangle fromBounds, Point end, Rectangle toBounds, List<Rectangle> obstacles) {
+        List<Point> path = new ArrayList<>();
+        route(start, fromBounds, end, toBounds, obstacles, path);
+        return path;
+    }
+
+    // 同上，結果寫進 path，沿用 path 裡原本的 Point，拖曳時重新繞線不配置物件
+    public void route(Point start, Rectangle fromBounds, Point end, Rectangle toBounds, List<Rectangle> obstacles,
+                      List<Point> path) {
+        int startDir = exitDirection(start, fromBounds, end);
+        int endDir = exitDirection(end, toBounds, start);
+        Point s = exitStart;
+        Point e = exitEnd;
+        s.setLocation(start.x + DX[startDir] * CLEARANCE, start.y + DY[startDir] * CLEARANCE);
+        e.setLocation(end.x + DX[endDir] * CLEARANCE, end.y + DY[endDir] * CLEARANCE);
+        searchArea(start, fromBounds, end, toBounds, area);
+
+        // 障礙物外擴 CLEARANCE，兩端的shape也是障礙物，端點伸出後剛好在外擴的邊上
+        blocks.clear();
+        addNearestBlocks(obstacles, start, end);
+        addBlock(fromBounds);
+        addBlock(toBounds);
+
+        xs = ensureCapacity(xs, 4 + blocks.size() * 2);
+        ys = ensureCapacity(ys, 4 + blocks.size() * 2);
+        nx = coordinates(xs, s.x, e.x, area.x, area.x + area.width, true);
+        ny = coordinates(ys, s.y, e.y, area.y, area.y + area.height, false);
+
+        pathLength = 0;
+        appendPoint(start.x, start.y);
+        if (!isFree(s) || !isFree(e) || !search(s, startDir, e, (endDir + 2) % 4)) {
+            // 被擋住時退回不避開障礙物的簡單折線
+            appendPoint(s.x, s.y);
+            if (DX[startDir] != 0) {
+                appendPoint(e.x, s.y);
+            } else {
+                appendPoint(s.x, e.y);
+            }
+            appendPoint(e.x, e.y);
+        }
+        appendPoint(end.x, end.y);
+        simplifyInto(path);
+    }
+
+    // 端點從shape的哪一邊伸出：離端點最近的邊(右、下、左、上，相同時取前面的)，沒有邊界時朝向另一端
+    private static int exitDirection(Point p, Rectangle bounds, Point other) {
+        if (bounds == null) {
+            int dx = other.x - p.x;
+            int dy = other.y - p.y;
+            return Math.abs(dx) >= Math.abs(dy) ? (dx >= 0 ? 0 : 2) : (dy >= 0 ? 1 : 3);
+        }
+        int best = 0;
+        int bestDist = Math.abs(bounds.x + bounds.width - p.x);
+        int down = Math.abs(bounds.y + bounds.height - p.y);
+        if (down < bestDist) {
+            best = 1;
+            bestDist = down;
+        }
+        int left = Math.abs(p.x - bounds.x);
+        if (left < bestDist) {
+            best = 2;
+            bestDist = left;
+        }
+        if (Math.abs(p.y - bounds.y) < bestDist) {
+            best = 3;
+        }
+        return best;
+    }
+
+    // 障礙物太多時依中心和兩端直線的距離，只保留最近的 MAX_OBSTACLES 個
+    // 部分選擇排序，距離相同時保留原本順序，結果和穩定排序後取前面的相同
+    private void addNearestBlocks(List<Rectangle> obstacles, Point start, Point end) {
+        int n = obstacles.size();
+        if (n <= MAX_OBSTACLES) {
+            for (int i = 0; i < n; i++) {
+                addBlock(obstacles.get(i));
+            }
+            return;
+        }
+        if (obstacleDist.length < n) {
+            obstacleDist = new double[Math.max(n, obstacleDist.length * 2)];
+            obstacleOrder = new int[obstacleDist.length];
+        }
+        for (int i = 0; i < n; i++) {
+            Rectangle r = obstacles.get(i);
+            obstacleDist[i] = Line2D.ptSegDistSq(start.x, start.y, end.x, end.y, r.getCenterX(), r.getCenterY());
+            obstacleOrder[i] = i;
+        }
+        for (int k = 0; k < MAX_OBSTACLES; k++) {
+            int best = k;
+            for (int j = k + 1; j < n; j++) {
+                int a = obstacleOrder[j];
+                int b = obstacleOrder[best];
+                if (obstacleDist[a] < obstacleDist[b] || (obstacleDist[a] == obstacleDist[b] && a < b)) {
+                    best = j;
+                }
+            }
+            int chosen = obstacleOrder[best];
+            obstacleOrder[best] = obstacleOrder[k];
+            obstacleOrder[k] = chosen;
+            addBlock(obstacles.get(chosen));
+        }
+    }
+
+    private void addBlock(Rectangle r) {
+        if (r != null) {
+            if (blocks.size() == blockPool.size()) {
+                blockPool.add(new Rectangle());
+            }
+            Rectangle block = blockPool.get(blocks.size());
+            block.setBounds(r);
+            block.grow(CLEARANCE, CLEARANCE);
+            blocks.add(block);
+        }
+    }
+
+    private boolean isFree(Point p) { // 點不在任何障礙物內部(邊上可以)
+        for (int i = 0; i < blocks.size(); i++) {
+            Rectangle r = blocks.get(i);
+            if (p.x > r.x && p.x < r.x + r.width && p.y > r.y && p.y < r.y + r.height) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // 網格的候選座標：端點、搜尋範圍邊界和範圍內的障礙物邊緣，排序去除重複後寫進 values
+    // @return 不重複的座標數量
+    private int coordinates(int[] values, int s, int e, int min, int max, boolean horizontal) {
+        int n = 0;
+        values[n++] = s;
+        values[n++] = e;
+        values[n++] = min;
+        values[n++] = max;
+        for (int i = 0; i < blocks.size(); i++) {
+            Rectangle r = blocks.get(i);
+            int lo = horizontal ? r.x : r.y;
+            int hi = lo + (horizontal ? r.width : r.height);
+            if (lo > min && lo < max) {
+                values[n++] = lo;
+            }
+            if (hi > min && hi < max) {
+                values[n++] = hi;
+            }
+        }
+        Arrays.sort(values, 0, n);
+        int unique = 0;
+        for (int i = 0; i < n; i++) {
+            if (unique == 0 || values[i] != values[unique - 1]) {
+                values[unique++] = values[i];
+            }
+        }
+        return unique;
+    }
+
+    // 在網格上用 A* 找 s 到 e 的路徑，狀態為(節點, 前進方向)，轉彎加上 BEND_PENALTY
+    // 找到時把經過的網格節點接在路徑後面
+    // @return 是否找到路徑
+    private boolean search(Point s, int startDir, Point e, int endDir) {
+        int nodes = nx * ny;
+        if (blockedRight.length < nodes) {
+            blockedRight = new boolean[Math.max(nodes, blockedRight.length * 2)];
+            blockedDown = new boolean[blockedRight.length];
+        }
+        Arrays.fill(blockedRight, 0, nodes, false);
+        Arrays.fill(blockedDown, 0, nodes, false);
+        for (int b = 0; b < blocks.size(); b++) {
+            markBlocked(blocks.get(b));
+        }
+
+        int sourceNode = Arrays.binarySearch(ys, 0, ny, s.y) * nx + Arrays.binarySearch(xs, 0, nx, s.x);
+        int targetNode = Arrays.binarySearch(ys, 0, ny, e.y) * nx + Arrays.binarySearch(xs, 0, nx, e.x);
+        int goal = nodes * 4; // 虛擬的終點狀態，到達 e 後加上進入終點的轉彎成本
+        if (cost.length < goal + 1) {
+            cost = new int[Math.max(goal + 1, cost.length * 2)];
+            parent = new int[cost.length];
+        }
+        Arrays.fill(cost, 0, goal + 1, Integer.MAX_VALUE);
+        open.clear();
+
+        int source = sourceNode * 4 + startDir;
+        cost[source] = 0;
+        parent[source] = -1;
+        open.push(source, 0, estimate(sourceNode, startDir, e));
+        while (!open.isEmpty()) {
+            int key = open.peekKey();
+            int state = open.pop();
+            if (state == goal) {
+                trace(goal);
+                return true;
+            }
+            int node = state / 4;
+            int dir = state % 4;
+            if (key > cost[state] + estimate(node, dir, e)) { // 已經有更短的路徑
+                continue;
+            }
+            if (node == targetNode) {
+                relax(state, goal, cost[state] + turnCost(dir, endDir), 0);
+                continue; // 到達 e 之後不需要再往外走
+            }
+            int i = node % nx;
+            int j = node / nx;
+            for (int d = 0; d < 4; d++) {
+                if (d == (dir + 2) % 4) { // 不回頭
+                    continue;
+                }
+                int next;
+                int length;
+                if (d == 0 && i + 1 < nx && !blockedRight[node]) {
+                    next = node + 1;
+                    length = xs[i + 1] - xs[i];
+                } else if (d == 2 && i > 0 && !blockedRight[node - 1]) {
+                    next = node - 1;
+                    length = xs[i] - xs[i - 1];
+                } else if (d == 1 && j + 1 < ny && !blockedDown[node]) {
+                    next = node + nx;
+                    length = ys[j + 1] - ys[j];
+                } else if (d == 3 && j > 0 && !blockedDown[node - nx]) {
+                    next = node - nx;
+                    length = ys[j] - ys[j - 1];
+                } else {
+                    continue;
+                }
+                int nextState = next * 4 + d;
+                relax(state, nextState, cost[state] + length + turnCost(dir, d), estimate(next, d, e));
+            }
+        }
+        return false;
+    }
+
+    private void relax(int from, int to, int newCost, int heuristic) {
+        if (newCost < cost[to]) {
+            cost[to] = newCost;
+            parent[to] = from;
+            open.push(to, newCost + heuristic, heuristic);
+        }
+    }
+
+    // 標記穿過障礙物內部的網格邊，沿著障礙物邊緣走的邊不算
+    // 障礙物的邊緣都是網格線(或在搜尋範圍外)，所以用邊的中點判斷即可
+    private void markBlocked(Rectangle r) {
+        int right = r.x + r.width;
+        int bottom = r.y + r.height;
+        int iStart = Math.max(0, lowerBound(xs, nx, r.x) - 1);
+        int jStart = Math.max(0, lowerBound(ys, ny, r.y) - 1);
+        for (int j = jStart; j < ny && ys[j] <= bottom; j++) {
+            for (int i = iStart; i < nx && xs[i] <= right; i++) {
+                boolean insideX = xs[i] > r.x && xs[i] < right;
+                boolean insideY = ys[j] > r.y && ys[j] < bottom;
+                if (insideY && i + 1 < nx && 2 * r.x < xs[i] + xs[i + 1] && xs[i] + xs[i + 1] < 2 * right) {
+                    blockedRight[j * nx + i] = true;
+                }
+                if (insideX && j + 1 < ny && 2 * r.y < ys[j] + ys[j + 1] && ys[j] + ys[j + 1] < 2 * bottom) {
+                    blockedDown[j * nx + i] = true;
+                }
+            }
+        }
+    }
+
+    private static int lowerBound(int[] values, int length, int v) { // 前 length 個中第一個 >= v 的位置
+        int lo = 0;
+        int hi = length;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (values[mid] < v) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    // A* 的估計值：曼哈頓距離加上至少還要轉彎的次數，不會高估
+    private int estimate(int node, int dir, Point e) {
+        int dx = e.x - xs[node % nx];
+        int dy = e.y - ys[node / nx];
+        int needX = dx > 0 ? 0 : dx < 0 ? 2 : -1; // 還需要的水平、垂直方向，-1 表示不需要
+        int needY = dy > 0 ? 1 : dy < 0 ? 3 : -1;
+        int bends;
+        if (needX < 0 && needY < 0) {
+            bends = 0;
+        } else if (needX < 0 || needY < 0) {
+            int need = needX < 0 ? needY : needX;
+            bends = dir == need ? 0 : dir == (need + 2) % 4 ? 2 : 1;
+        } else {
+            bends = dir == needX || dir == needY ? 1 : 2;
+        }
+        return Math.abs(dx) + Math.abs(dy) + bends * BEND_PENALTY;
+    }
+
+    private static int turnCost(int from, int to) {
+        if (from == to) {
+            return 0;
+        }
+        return from == (to + 2) % 4 ? 2 * BEND_PENALTY : BEND_PENALTY;
+    }
+
+    private void trace(int goal) { // 從終點沿 parent 走回起點，依起點到終點的順序接在路徑後面
+        int count = 0;
+        for (int state = parent[goal]; state >= 0; state = parent[state]) {
+            count++;
+        }
+        ensurePathCapacity(pathLength + count);
+        int i = pathLength + count - 1;
+        for (int state = parent[goal]; state >= 0; state = parent[state]) {
+            int node = state / 4;
+            pathX[i] = xs[node % nx];
+            pathY[i] = ys[node / nx];
+            i--;
+        }
+        pathLength += count;
+    }
+
+    private void appendPoint(int x, int y) {
+        ensurePathCapacity(pathLength + 1);
+        pathX[pathLength] = x;
+        pathY[pathLength] = y;
+        pathLength++;
+    }
+
+    private void ensurePathCapacity(int length) {
+        if (pathX.length < length) {
+            pathX = Arrays.copyOf(pathX, Math.max(length, pathX.length * 2));
+            pathY = Arrays.copyOf(pathY, pathX.length);
+        }
+    }
+
+    // 移除重複的點和直線中間的點，只留下轉折點，結果寫進 path(沿用原本的 Point，不夠時才新增)
+    private void simplifyInto(List<Point> path) {
+        int n = 0;
+        for (int i = 0; i < pathLength; i++) {
+            int x = pathX[i];
+            int y = pathY[i];
+            if (n > 0 && pathX[n - 1] == x && pathY[n - 1] == y) {
+                continue;
+            }
+            if (n > 1 && ((pathX[n - 2] == pathX[n - 1] && pathX[n - 1] == x)
+                    || (pathY[n - 2] == pathY[n - 1] && pathY[n - 1] == y))) {
+                pathX[n - 1] = x;
+                pathY[n - 1] = y;
+                continue;
+            }
+            pathX[n] = x;
+            pathY[n] = y;
+            n++;
+        }
+        for (int i = 0; i < n; i++) {
+            if (i < path.size()) {
+                path.get(i).setLocation(pathX[i], pathY[i]);
+            } else {
+                path.add(new Point(pathX[i], pathY[i]));
+            }
+        }
+        while (path.size() > n) {
+            path.remove(path.size() - 1);
+        }
+    }
+
+    private static int[] ensureCapacity(int[] values, int length) {
+        return values.length >= length ? values : new int[Math.max(length, values.length * 2)];
+    }
+
+    // A* 用的最小堆積，存狀態和排序用的 key，同一個狀態可以重複放入(取出時跳過過期的)
+    // key 相同時先取估計值小的(比較接近終點)，減少平手時展開的狀態
+    private static final class IntHeap {
+        private int[] states = new int[64];
+        private long[] keys = new long[64];
+        private int size = 0;
+
+        boolean isEmpty() {
+            return size == 0;
+        }
+
+        void clear() {
+            size = 0;
+        }
+
+        void push(int state, int key, int tieBreak) {
+            push(state, ((long) key << 32) | tieBreak);
+        }
+
+        private void push(int state, long key) {
+            if (size == states.length) {
+                states = Arrays.copyOf(states, size * 2);
+                keys = Arrays.copyOf(keys, size * 2);
+            }
+            int i = size++;
+            while (i > 0) {
+                int p = (i - 1) / 2;
+                if (keys[p] <= key) {
+                    break;
+                }
+                states[i] = states[p];
+                keys[i] = keys[p];
+                i = p;
+            }
+            states[i] = state;
+            keys[i] = key;
+        }
+
+        int peekKey() {
+            return (int) (keys[0] >>> 32);
+        }
+
+        int pop() {
+            int top = states[0];
+            int state = states[--size];
+            long key = keys[size];
+            int i = 0;
+            while (true) {
+                int c = 2 * i + 1;
+                if (c >= size) {
+                    break;
+                }
+                if (c + 1 < size && keys[c + 1] < keys[c]) {
+                    c++;
+                }
+                if (keys[c] >= key) {
+                    break;
+                }
+                states[i] = states[c];
+                keys[i] = keys[c];
+                i = c;
+            }
+            states[i] = state;
+            keys[i] = key;
+            return top;
+        }
+    }
+}
@@ -1,22 +1,35 @@
 package link;
 
-import java.awt.BasicStroke;
 import java.awt.Color;
 import java.awt.Graphics;
 import java.awt.Graphics2D;
 import java.awt.Point;
+import java.awt.Rectangle;
 import java.awt.Stroke;
 import java.util.ArrayList;
 import java.util.List;
 
+import render.LevelOfDetail;
+import render.RenderCache;
 import shape.Shape;
 
 // 連結物件類別，用於繪製basic物件間的連線
 public class LinkShape {
+    public static final int REPAINT_MARGIN = 22; // 箭頭和線寬超出路徑的範圍
+    public static final float LINE_WIDTH = 2.0f; // 線寬
+
+    // 畫箭頭多邊形用的暫存陣列，只在 EDT 上繪圖所以可以共用
+    private static final int[] POLYGON_X = new int[4];
+    private static final int[] POLYGON_Y = new int[4];
+
     private Shape fromShape, toShape;
     private Point start, end;
     private LinkType type;
     private List<Point> path;
+    private int handle = -1; // model中的索引(穩定的 int id)，-1 表示不在model中
+    // 兩端接上的port：port所屬的shape(group時可能是子物件)和port index，由model在加入時記錄
+    private Shape startPortShape, endPortShape;
+    private int startPortIndex = -1, endPortIndex = -1;
 
      // 創建一個連結物件
      // @param fromShape 起始basic
@@ -28,8 +41,8 @@ public class LinkShape {
     public LinkShape(Shape fromShape, Shape toShape, Point start, Point end, LinkType type, List<Point> path) {
         this.fromShape = fromShape;
         this.toShape = toShape;
-        this.start = start;
-        this.end = end;
+        this.start = start != null ? new Point(start) : null; // 端點由連線自己持有，model會直接移動它
+        this.end = end != null ? new Point(end) : null;
         this.type = type;
         this.path = path != null ? new ArrayList<>(path) : new ArrayList<>();
     }
@@ -41,6 +54,14 @@ public class LinkShape {
              path);
     }
     
+    public int getHandle() {
+        return handle;
+    }
+
+    public void setHandle(int handle) { // 只由model的儲存結構設定
+        this.handle = handle;
+    }
+
     public Shape getFromShape() {
         return fromShape;
     }
@@ -73,6 +94,32 @@ public class LinkShape {
         this.end = end;
     }
     
+    public Shape getStartPortShape() {
+        return startPortShape;
+    }
+
+    public int getStartPortIndex() {
+        return startPortIndex;
+    }
+
+    public void setStartPort(Shape shape, int index) { // 記錄起點接上的port，沒有時傳 null, -1
+        this.startPortShape = shape;
+        this.startPortIndex = index;
+    }
+
+    public Shape getEndPortShape() {
+        return endPortShape;
+    }
+
+    public int getEndPortIndex() {
+        return endPortIndex;
+    }
+
+    public void setEndPort(Shape shape, int index) { // 記錄終點接上的port，沒有時傳 null, -1
+        this.endPortShape = shape;
+        this.endPortIndex = index;
+    }
+
     public List<Point> getPath() {
         return path;
     }
@@ -81,18 +128,42 @@ public class LinkShape {
         this.path = new ArrayList<>(newPath);
     }
 
+    // 重繪時需要涵蓋的範圍，包含路徑和箭頭
+    public Rectangle getRepaintBounds() {
+        Rectangle bounds = new Rectangle();
+        getRepaintBounds(bounds);
+        return bounds;
+    }
+
+    // 把重繪範圍寫進 bounds，不建立新的矩形
+    public void getRepaintBounds(Rectangle bounds) {
+        if (!path.isEmpty()) {
+            bounds.setLocation(path.get(0));
+            bounds.setSize(0, 0);
+            for (int i = 1; i < path.size(); i++) {
+                bounds.add(path.get(i));
+            }
+        } else {
+            bounds.setBounds(0, 0, 0, 0);
+            if (start != null) bounds.setLocation(start);
+            if (end != null) bounds.add(end);
+        }
+        bounds.grow(REPAINT_MARGIN, REPAINT_MARGIN);
+    }
+
     // 繪製連線的直線部分
     public void draw(Graphics g) {
+        draw(g, LevelOfDetail.FULL);
+    }
+
+    // 依細節程度繪製，箭頭太小時只畫直線
+    public void draw(Graphics g, LevelOfDetail lod) {
         Graphics2D g2d = (Graphics2D) g;
         
         Stroke originalStroke = g2d.getStroke();
         
-        // 使用更平滑的線條樣式
-        g2d.setStroke(new BasicStroke(
-            2.0f,                    // 線寬增加到2.0f
-            BasicStroke.CAP_ROUND,   // 圓形線帽
-            BasicStroke.JOIN_ROUND   // 圓形連接點
-        ));
+        // 使用更平滑的線條樣式(圓形線帽和連接點)，從快取取得
+        g2d.setStroke(RenderCache.getStroke(LINE_WIDTH));
         
         g2d.setColor(Color.BLACK);
         
@@ -104,7 +175,7 @@ public class LinkShape {
         }
 
         // 繪製association/generalization/composition
-        if (path.size() > 1) {
+        if (path.size() > 1 && lod.showArrowHeads()) {
             Point from = path.get(path.size() - 2);
             Point to = path.get(path.size() - 1);
             drawArrow(g2d, from.x, from.y, to.x, to.y, type);
@@ -115,7 +186,12 @@ public class LinkShape {
 
     // 根據連線類型繪製箭頭 
     public void drawArrow(Graphics g, int x1, int y1, int x2, int y2, LinkType type) {
-        int arrowSize = 14;
+        drawArrowHead(g, x1, y1, x2, y2, type);
+    }
+
+    // 不需要連線物件的箭頭繪製，供預覽線使用
+    public static void drawArrowHead(Graphics g, int x1, int y1, int x2, int y2, LinkType type) {
+        int arrowSize = LevelOfDetail.ARROW_SIZE;
         double angle = Math.atan2(y2 - y1, x2 - x1);
         Graphics2D g2d = (Graphics2D) g;
 
@@ -134,22 +210,20 @@ public class LinkShape {
     }
     
     // 畫generalization箭頭
-    private void drawGeneralization(Graphics2D g2d, int x2, int y2, double angle, int arrowSize) {
+    private static void drawGeneralization(Graphics2D g2d, int x2, int y2, double angle, int arrowSize) {
         // 調整空心三角形的形狀參數
         double baseWidth = 0.5; 
         double height = 1.3;   
         
         // 計算三角形三個點
-        int[] xPoints = {
-            x2, // 頂點
-            x2 - (int)(arrowSize * height * Math.cos(angle) - arrowSize * baseWidth * Math.sin(angle)),
-            x2 - (int)(arrowSize * height * Math.cos(angle) + arrowSize * baseWidth * Math.sin(angle))
-        };
-        int[] yPoints = {
-            y2, // 頂點
-            y2 - (int)(arrowSize * height * Math.sin(angle) + arrowSize * baseWidth * Math.cos(angle)),
-            y2 - (int)(arrowSize * height * Math.sin(angle) - arrowSize * baseWidth * Math.cos(angle))
-        };
+        int[] xPoints = POLYGON_X;
+        int[] yPoints = POLYGON_Y;
+        xPoints[0] = x2; // 頂點
+        xPoints[1] = x2 - (int)(arrowSize * height * Math.cos(angle) - arrowSize * baseWidth * Math.sin(angle));
+        xPoints[2] = x2 - (int)(arrowSize * height * Math.cos(angle) + arrowSize * baseWidth * Math.sin(angle));
+        yPoints[0] = y2; // 頂點
+        yPoints[1] = y2 - (int)(arrowSize * height * Math.sin(angle) + arrowSize * baseWidth * Math.cos(angle));
+        yPoints[2] = y2 - (int)(arrowSize * height * Math.sin(angle) - arrowSize * baseWidth * Math.cos(angle));
         
         // 畫空心三角形
         Color origColor = g2d.getColor();
@@ -160,23 +234,21 @@ public class LinkShape {
     }
 
     // 畫composition箭頭
-    private void drawComposition(Graphics2D g2d, int x2, int y2, double angle, int arrowSize) {
+    private static void drawComposition(Graphics2D g2d, int x2, int y2, double angle, int arrowSize) {
         // 用正方形旋轉30度來做菱形
         int diamondSize = arrowSize;
         
         // 計算菱形的四個角
-        int[] xPoints = {
-            x2,                                                      // 前端點
-            x2 - (int)(diamondSize * Math.cos(angle - Math.PI/6)),  // 右側點
-            x2 - (int)(diamondSize * Math.sqrt(2) * Math.cos(angle)), // 後端點
-            x2 - (int)(diamondSize * Math.cos(angle + Math.PI/6))   // 左側點
-        };
-        int[] yPoints = {
-            y2,                                                      // 前端點
-            y2 - (int)(diamondSize * Math.sin(angle - Math.PI/6)),  // 右側點
-            y2 - (int)(diamondSize * Math.sqrt(2) * Math.sin(angle)), // 後端點
-            y2 - (int)(diamondSize * Math.sin(angle + Math.PI/6))   // 左側點
-        };
+        int[] xPoints = POLYGON_X;
+        int[] yPoints = POLYGON_Y;
+        xPoints[0] = x2;                                                       // 前端點
+        xPoints[1] = x2 - (int)(diamondSize * Math.cos(angle - Math.PI/6));   // 右側點
+        xPoints[2] = x2 - (int)(diamondSize * Math.sqrt(2) * Math.cos(angle)); // 後端點
+        xPoints[3] = x2 - (int)(diamondSize * Math.cos(angle + Math.PI/6));   // 左側點
+        yPoints[0] = y2;                                                       // 前端點
+        yPoints[1] = y2 - (int)(diamondSize * Math.sin(angle - Math.PI/6));   // 右側點
+        yPoints[2] = y2 - (int)(diamondSize * Math.sqrt(2) * Math.sin(angle)); // 後端點
+        yPoints[3] = y2 - (int)(diamondSize * Math.sin(angle + Math.PI/6));   // 左側點
         
         // 畫空心菱形
         g2d.setColor(Color.WHITE);
@@ -186,9 +258,9 @@ public class LinkShape {
     }
 
     // 畫association箭頭
-    private void drawAssociation(Graphics2D g2d, int x2, int y2, double angle, int arrowSize) {
+    private static void drawAssociation(Graphics2D g2d, int x2, int y2, double angle, int arrowSize) {
         Stroke originalStroke = g2d.getStroke();
-        g2d.setStroke(new BasicStroke(2.0f, BasicStroke.CAP_ROUND, BasicStroke.JOIN_ROUND));
+        g2d.setStroke(RenderCache.getStroke(LINE_WIDTH));
         
         g2d.drawLine(x2, y2, 
                   x2 - (int) (arrowSize * Math.cos(angle - Math.PI / 6)), 
@@ -202,17 +274,14 @@ public class LinkShape {
     
     // 以下使用三個靜態 method 來讓 CanvasPanel 呼叫畫三種連線的箭頭
     public static void drawArrow(Graphics g, Point from, Point to) {
-        LinkShape linkShape = new LinkShape(null, null, null, null, LinkType.ASSOCIATION, null);
-        linkShape.drawArrow(g, from.x, from.y, to.x, to.y, LinkType.ASSOCIATION);
+        drawArrowHead(g, from.x, from.y, to.x, to.y, LinkType.ASSOCIATION);
     }
     
     public static void drawTriangle(Graphics g, Point from, Point to) {
-        LinkShape linkShape = new LinkShape(null, null, null, null, LinkType.GENERALIZATION, null);
-        linkShape.drawArrow(g, from.x, from.y, to.x, to.y, LinkType.GENERALIZATION);
+        drawArrowHead(g, from.x, from.y, to.x, to.y, LinkType.GENERALIZATION);
     }
     
     public static void drawDiamond(Graphics g, Point from, Point to) {
-        LinkShape linkShape = new LinkShape(null, null, null, null, LinkType.COMPOSITION, null);
-        linkShape.drawArrow(g, from.x, from.y, to.x, to.y, LinkType.COMPOSITION);
+        drawArrowHead(g, from.x, from.y, to.x, to.y, LinkType.COMPOSITION);
     }
 }
\ No newline at end of file
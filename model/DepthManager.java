@@ -0,0 +1,125 @@
+package model;
+
+import java.util.Arrays;
+
+// 最上層shape的深度分布，記錄每個深度有幾個shape
+// 最大/最小深度 O(1) 取得，找相鄰深度最多掃描 MAX_DEPTH 格
+// 深度用完時由model依照 renumberTable 一次重新編號(保持原本的上下順序)
+public class DepthManager {
+    public static final int MAX_DEPTH = 99; // 深度範圍 0~99
+
+    private int[] counts = new int[MAX_DEPTH + 1];
+    private int size = 0;
+    private int maxDepth = -1;
+    private int minDepth = -1;
+
+    public void add(int depth) {
+        if (depth >= counts.length) {
+            counts = Arrays.copyOf(counts, Math.max(depth + 1, counts.length * 2));
+        }
+        counts[depth]++;
+        size++;
+        if (depth > maxDepth) {
+            maxDepth = depth;
+        }
+        if (minDepth < 0 || depth < minDepth) {
+            minDepth = depth;
+        }
+    }
+
+    public void remove(int depth) {
+        if (depth >= counts.length || counts[depth] == 0) {
+            return;
+        }
+        counts[depth]--;
+        size--;
+        if (size == 0) {
+            maxDepth = minDepth = -1;
+            return;
+        }
+        if (counts[depth] == 0) {
+            if (depth == maxDepth) {
+                maxDepth = nextBelow(depth);
+            }
+            if (depth == minDepth) {
+                minDepth = nextAbove(depth);
+            }
+        }
+    }
+
+    public void move(int oldDepth, int newDepth) { // shape的深度改變
+        if (oldDepth != newDepth) {
+            add(newDepth);
+            remove(oldDepth);
+        }
+    }
+
+    public int getMaxDepth() { // 沒有shape時回傳 -1
+        return maxDepth;
+    }
+
+    public int getMinDepth() {
+        return minDepth;
+    }
+
+    public int getCount(int depth) { // 在這個深度的shape數量
+        return depth >= 0 && depth < counts.length ? counts[depth] : 0;
+    }
+
+    public int nextAbove(int depth) { // 比 depth 大的下一個有shape的深度，沒有時回傳 -1
+        for (int d = depth + 1; d <= maxDepth; d++) {
+            if (counts[d] > 0) {
+                return d;
+            }
+        }
+        return -1;
+    }
+
+    public int nextBelow(int depth) { // 比 depth 小的下一個有shape的深度，沒有時回傳 -1
+        for (int d = Math.min(depth, counts.length) - 1; d >= 0; d--) {
+            if (counts[d] > 0) {
+                return d;
+            }
+        }
+        return -1;
+    }
+
+    // 重新編號的對照表(舊深度 -> 新深度)，從 base 開始依序排列，保持原本的上下順序
+    // 最多只用掉 base~MAX_DEPTH 的一半，留下空間給之後的調整，不會每次新增都要重新編號
+    // 不同深度的數量太多時，按比例合併相鄰的深度
+    public int[] renumberTable(int base) {
+        int levels = 0;
+        for (int d = 0; d <= maxDepth; d++) {
+            if (counts[d] > 0) {
+                levels++;
+            }
+        }
+        int slots = (MAX_DEPTH + 1 - base) / 2;
+        int[] table = new int[Math.max(maxDepth + 1, 0)];
+        int rank = 0;
+        for (int d = 0; d <= maxDepth; d++) {
+            table[d] = levels <= slots ? base + rank : base + (int) ((long) rank * slots / levels);
+            if (counts[d] > 0) {
+                rank++;
+            }
+        }
+        return table;
+    }
+
+    public void applyRenumber(int[] table) { // 依對照表搬移計數
+        int[] renumbered = new int[MAX_DEPTH + 1];
+        for (int d = 0; d < table.length; d++) {
+            renumbered[table[d]] += counts[d];
+        }
+        counts = renumbered;
+        maxDepth = minDepth = -1;
+        for (int d = 0; d < counts.length; d++) {
+            if (counts[d] > 0) {
+                if (minDepth < 0) {
+                    minDepth = d;
+                }
+                maxDepth = d;
+            }
+        }
+    }
+}
@@ -0,0 +1,125 @@
+package model;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import shape.Shape;
+
+// 依深度排序的繪製順序清單，index 0 為最底層
+// 同深度時後加入(或後調整)的shape在上層，與原本穩定排序的結果一致
+// 移除時只拿掉key做標記，清單在下一次讀取或插入前一次壓縮，群組 k 個shape時是 O(n + k) 而不是 O(k·n)
+public class DrawOrder {
+    private final List<Shape> ordered = new ArrayList<>();
+    private final Map<Shape, long[]> keys = new IdentityHashMap<>(); // shape -> {深度, 序號}，沒有key的是已移除的
+    private int removedCount = 0; // ordered 中已移除、還沒壓縮掉的數量
+    private long nextSequence = 0;
+
+    public void insert(Shape shape) { // 依目前深度插入
+        compact();
+        long[] key = {shape.getDepth(), nextSequence++};
+        keys.put(shape, key);
+        int pos = search(key);
+        ordered.add(-(pos + 1), shape);
+    }
+
+    public void remove(Shape shape) { // 標記為已移除
+        if (keys.remove(shape) != null) {
+            removedCount++;
+        }
+    }
+
+    public void update(Shape shape) { // 深度改變後重新放置
+        if (keys.containsKey(shape)) {
+            remove(shape);
+            insert(shape);
+        }
+    }
+
+    // 所有深度依原本順序重新編號後呼叫：順序不變，只把key換成新的深度和目前位置
+    public void renumbered() {
+        compact();
+        for (int i = 0; i < ordered.size(); i++) {
+            Shape shape = ordered.get(i);
+            long[] key = keys.get(shape);
+            key[0] = shape.getDepth();
+            key[1] = i;
+        }
+        nextSequence = ordered.size();
+    }
+
+    public int getIndexedDepth(Shape shape) { // 排序時記錄的深度，不在清單中時為 -1
+        long[] key = keys.get(shape);
+        return key != null ? (int) key[0] : -1;
+    }
+
+    public boolean isStale(Shape shape) { // 記錄的深度是否和目前深度不同
+        long[] key = keys.get(shape);
+        return key != null && key[0] != shape.getDepth();
+    }
+
+    public int size() {
+        compact();
+        return ordered.size();
+    }
+
+    public Shape get(int index) { // 由下往上的第 index 個shape
+        compact();
+        return ordered.get(index);
+    }
+
+    // 比較兩個shape的繪製順序，越上層越大
+    public int compare(Shape a, Shape b) {
+        long[] keyA = keys.get(a);
+        long[] keyB = keys.get(b);
+        if (keyA == null || keyB == null) {
+            return Integer.compare(a.getDepth(), b.getDepth());
+        }
+        return compareKeys(keyA, keyB);
+    }
+
+    public void clear() {
+        ordered.clear();
+        keys.clear();
+        removedCount = 0;
+    }
+
+    // 一次移掉所有已標記的shape，其餘的往前搬，順序不變
+    private void compact() {
+        if (removedCount == 0) {
+            return;
+        }
+        int kept = 0;
+        for (int i = 0; i < ordered.size(); i++) {
+            Shape shape = ordered.get(i);
+            if (keys.containsKey(shape)) {
+                ordered.set(kept++, shape);
+            }
+        }
+        ordered.subList(kept, ordered.size()).clear();
+        removedCount = 0;
+    }
+
+    private int search(long[] key) { // 二分搜尋，找不到時回傳 -(插入點 + 1)
+        int low = 0;
+        int high = ordered.size() - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int cmp = compareKeys(keys.get(ordered.get(mid)), key);
+            if (cmp < 0) {
+                low = mid + 1;
+            } else if (cmp > 0) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -(low + 1);
+    }
+
+    private static int compareKeys(long[] a, long[] b) {
+        int cmp = Long.compare(a[0], b[0]);
+        return cmp != 0 ? cmp : Long.compare(a[1], b[1]);
+    }
+}
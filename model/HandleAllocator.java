@@ -0,0 +1,35 @@
+package model;
+
+import java.util.Arrays;
+
+// 配置穩定的 int handle，移除後的 handle 放進 free list 重複使用
+// 配置和釋放都是 O(1)，用過的 handle 都小於 highWater，掃描時只需要走到這裡
+public class HandleAllocator {
+    private int[] freeIds = new int[16];
+    private int freeCount = 0;
+    private int highWater = 0; // 用過的最大 handle + 1
+
+    public int allocate() {
+        return freeCount > 0 ? freeIds[--freeCount] : highWater++;
+    }
+
+    public void release(int id) {
+        if (freeCount == freeIds.length) {
+            freeIds = Arrays.copyOf(freeIds, freeIds.length * 2);
+        }
+        freeIds[freeCount++] = id;
+    }
+
+    public int getHighWater() {
+        return highWater;
+    }
+
+    public int size() { // 目前配置出去的 handle 數量
+        return highWater - freeCount;
+    }
+
+    public void clear() {
+        freeCount = 0;
+        highWater = 0;
+    }
+}
@@ -0,0 +1,87 @@
+package model;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import link.LinkShape;
+
+// model的連線容器，以 LinkShape 的 handle(穩定的 int id)索引
+// 加入、移除、檢查是否存在都是 O(1)，走訪時依 id 順序跳過空的 id
+public class LinkStore implements Iterable<LinkShape> {
+    private final HandleAllocator handles = new HandleAllocator();
+    private LinkShape[] links = new LinkShape[64];
+
+    public int add(LinkShape link) {
+        int id = handles.allocate();
+        if (id >= links.length) {
+            links = Arrays.copyOf(links, links.length * 2);
+        }
+        links[id] = link;
+        link.setHandle(id);
+        return id;
+    }
+
+    public void remove(LinkShape link) {
+        if (!contains(link)) {
+            return;
+        }
+        int id = link.getHandle();
+        links[id] = null;
+        link.setHandle(-1);
+        handles.release(id);
+    }
+
+    public boolean contains(LinkShape link) {
+        int id = link.getHandle();
+        return id >= 0 && id < handles.getHighWater() && links[id] == link;
+    }
+
+    public int size() {
+        return handles.size();
+    }
+
+    public LinkShape get(int id) {
+        return links[id];
+    }
+
+    public void copyTo(List<LinkShape> out) { // 依 id 順序複製所有連線
+        int highWater = handles.getHighWater();
+        for (int id = 0; id < highWater; id++) {
+            if (links[id] != null) {
+                out.add(links[id]);
+            }
+        }
+    }
+
+    @Override
+    public Iterator<LinkShape> iterator() {
+        return new Iterator<LinkShape>() {
+            private int next = skipEmpty(0);
+
+            @Override
+            public boolean hasNext() {
+                return next < handles.getHighWater();
+            }
+
+            @Override
+            public LinkShape next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                LinkShape link = links[next];
+                next = skipEmpty(next + 1);
+                return link;
+            }
+        };
+    }
+
+    private int skipEmpty(int id) {
+        int highWater = handles.getHighWater();
+        while (id < highWater && links[id] == null) {
+            id++;
+        }
+        return id;
+    }
+}
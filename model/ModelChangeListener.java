@@ -2,22 +2,26 @@ package model;
 
 import shape.Shape;
 import link.LinkShape;
+import java.awt.Rectangle;
 import java.util.List;
 
 // 模型變更監聽器接口
+// damage 為變更前後需要重繪的範圍(舊範圍與新範圍的聯集)，model會重複使用同一個矩形，只在呼叫期間有效
 public interface ModelChangeListener {
 
-    void onShapeAdded(Shape shape); // 當Shape被添加時調用
+    void onShapeAdded(Shape shape, Rectangle damage); // 當Shape被添加時調用
     
-    void onShapeRemoved(Shape shape); // 當Shape被移除時調用
+    void onShapeRemoved(Shape shape, Rectangle damage); // 當Shape被移除時調用
     
-    void onShapeModified(Shape shape); // 當Shape被修改時調用
+    void onShapeModified(Shape shape, Rectangle damage); // 當Shape被修改時調用
     
-    void onLinkAdded(LinkShape link); // 當連線被添加時調用
+    void onLinkAdded(LinkShape link, Rectangle damage); // 當連線被添加時調用
     
-    void onLinkRemoved(LinkShape link); // 當連線被移除時調用
+    void onLinkRemoved(LinkShape link, Rectangle damage); // 當連線被移除時調用
     
-    void onLinkModified(LinkShape link); // 當連線被修改時調用
+    void onLinkModified(LinkShape link, Rectangle damage); // 當連線被修改時調用
     
-    void onSelectionChanged(List<Shape> selectedShapes); // 當選中的Shape變更時調用
+    void onSelectionChanged(List<Shape> selectedShapes, Rectangle damage); // 當選中的Shape變更時調用
+    
+    void onModelChanged(ModelChangeSet changes); // 交易commit時調用，包含交易期間所有的變更
 }
\ No newline at end of file
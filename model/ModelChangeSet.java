@@ -0,0 +1,154 @@
+package model;
+
+import java.awt.Rectangle;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+import link.LinkShape;
+import shape.Shape;
+
+// 交易期間累積的model變更，commit時一次交給監聽器
+// model會在通知結束後清空並重複使用同一個物件，監聽器只能在 onModelChanged 期間讀取，不可以保留
+public class ModelChangeSet {
+    private final OrderedIdentitySet<Shape> addedShapes = new OrderedIdentitySet<>();
+    private final OrderedIdentitySet<Shape> removedShapes = new OrderedIdentitySet<>();
+    private final OrderedIdentitySet<Shape> modifiedShapes = new OrderedIdentitySet<>();
+    private final OrderedIdentitySet<LinkShape> addedLinks = new OrderedIdentitySet<>();
+    private final OrderedIdentitySet<LinkShape> removedLinks = new OrderedIdentitySet<>();
+    private final OrderedIdentitySet<LinkShape> modifiedLinks = new OrderedIdentitySet<>();
+    // 對外提供的唯讀 view 只建立一次
+    private final Set<Shape> addedShapesView = Collections.unmodifiableSet(addedShapes);
+    private final Set<Shape> removedShapesView = Collections.unmodifiableSet(removedShapes);
+    private final Set<Shape> modifiedShapesView = Collections.unmodifiableSet(modifiedShapes);
+    private final Set<LinkShape> addedLinksView = Collections.unmodifiableSet(addedLinks);
+    private final Set<LinkShape> removedLinksView = Collections.unmodifiableSet(removedLinks);
+    private final Set<LinkShape> modifiedLinksView = Collections.unmodifiableSet(modifiedLinks);
+    private final List<Shape> selectedShapes = new ArrayList<>();
+    private final List<Shape> selectedShapesView = Collections.unmodifiableList(selectedShapes);
+    private boolean selectionChanged = false;
+    private final Rectangle damage = new Rectangle();
+
+    void shapeAdded(Shape shape, Rectangle area) {
+        if (!removedShapes.remove(shape)) {
+            addedShapes.add(shape);
+        }
+        addDamage(area);
+    }
+
+    void shapeRemoved(Shape shape, Rectangle area) {
+        modifiedShapes.remove(shape);
+        if (!addedShapes.remove(shape)) {
+            removedShapes.add(shape);
+        }
+        addDamage(area);
+    }
+
+    void shapeModified(Shape shape, Rectangle area) {
+        if (!addedShapes.contains(shape)) {
+            modifiedShapes.add(shape);
+        }
+        addDamage(area);
+    }
+
+    void linkAdded(LinkShape link, Rectangle area) {
+        if (!removedLinks.remove(link)) {
+            addedLinks.add(link);
+        }
+        addDamage(area);
+    }
+
+    void linkRemoved(LinkShape link, Rectangle area) {
+        modifiedLinks.remove(link);
+        if (!addedLinks.remove(link)) {
+            removedLinks.add(link);
+        }
+        addDamage(area);
+    }
+
+    void linkModified(LinkShape link, Rectangle area) {
+        if (!addedLinks.contains(link)) {
+            modifiedLinks.add(link);
+        }
+        addDamage(area);
+    }
+
+    void selectionChanged(List<Shape> selection, Rectangle area) {
+        selectedShapes.clear();
+        selectedShapes.addAll(selection);
+        selectionChanged = true;
+        addDamage(area);
+    }
+
+    private void addDamage(Rectangle area) {
+        if (area == null || area.isEmpty()) {
+            return;
+        }
+        if (damage.isEmpty()) {
+            damage.setBounds(area);
+        } else {
+            damage.add(area);
+        }
+    }
+
+    public boolean isEmpty() {
+        return addedShapes.isEmpty() && removedShapes.isEmpty() && modifiedShapes.isEmpty()
+                && addedLinks.isEmpty() && removedLinks.isEmpty() && modifiedLinks.isEmpty()
+                && !selectionChanged;
+    }
+
+    void clear() { // 通知結束後清空，下一次交易重複使用
+        addedShapes.clear();
+        removedShapes.clear();
+        modifiedShapes.clear();
+        addedLinks.clear();
+        removedLinks.clear();
+        modifiedLinks.clear();
+        selectedShapes.clear();
+        selectionChanged = false;
+        damage.setBounds(0, 0, 0, 0);
+    }
+
+    public Set<Shape> getAddedShapes() { return addedShapesView; }
+    public Set<Shape> getRemovedShapes() { return removedShapesView; }
+    public Set<Shape> getModifiedShapes() { return modifiedShapesView; }
+    public Set<LinkShape> getAddedLinks() { return addedLinksView; }
+    public Set<LinkShape> getRemovedLinks() { return removedLinksView; }
+    public Set<LinkShape> getModifiedLinks() { return modifiedLinksView; }
+
+    // 變更是否只有移動 shape 和 links 中的連線(拖曳時的浮動圖層)，逐項比對不建立 iterator
+    public boolean isOnlyModifying(Shape shape, Set<LinkShape> links) {
+        if (selectionChanged || !addedShapes.isEmpty() || !removedShapes.isEmpty()
+                || !addedLinks.isEmpty() || !removedLinks.isEmpty()) {
+            return false;
+        }
+        for (int i = 0; i < modifiedShapes.size(); i++) {
+            if (modifiedShapes.get(i) != shape) {
+                return false;
+            }
+        }
+        for (int i = 0; i < modifiedLinks.size(); i++) {
+            if (!links.contains(modifiedLinks.get(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public boolean isSelectionChanged() { // 交易期間選取是否改變
+        return selectionChanged;
+    }
+
+    public List<Shape> getSelectedShapes() { // 交易結束時的選取
+        return selectedShapesView;
+    }
+
+    public Rectangle getDamage() { // 所有變更的重繪範圍聯集
+        return new Rectangle(damage);
+    }
+
+    public void getDamage(Rectangle out) { // 把重繪範圍寫進 out，不配置新的 Rectangle
+        out.setBounds(damage);
+    }
+}
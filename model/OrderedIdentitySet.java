@@ -0,0 +1,69 @@
+package model;
+
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+
+// 依加入順序走訪、以 identity 比較的集合，給重複使用的 ModelChangeSet 用
+// LinkedHashSet 每次加入都會建立節點；這裡清單和 identity map 清空後容量還在，穩定後加入和清空都不配置物件
+final class OrderedIdentitySet<T> extends AbstractSet<T> {
+    private final List<T> items = new ArrayList<>();
+    private final Set<T> members = Collections.newSetFromMap(new IdentityHashMap<>());
+
+    @Override
+    public boolean add(T item) {
+        if (!members.add(item)) {
+            return false;
+        }
+        items.add(item);
+        return true;
+    }
+
+    @Override
+    public boolean remove(Object item) { // 交易中加入又移除的情況很少，線性搜尋即可
+        if (!members.remove(item)) {
+            return false;
+        }
+        for (int i = items.size() - 1; i >= 0; i--) {
+            if (items.get(i) == item) {
+                items.remove(i);
+                break;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public boolean contains(Object item) {
+        return members.contains(item);
+    }
+
+    @Override
+    public int size() {
+        return items.size();
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return items.isEmpty();
+    }
+
+    T get(int index) { // 依加入順序的第 index 個，走訪時不需要建立 iterator
+        return items.get(index);
+    }
+
+    @Override
+    public Iterator<T> iterator() { // 只透過 ModelChangeSet 的唯讀 view 對外提供
+        return items.iterator();
+    }
+
+    @Override
+    public void clear() {
+        items.clear();
+        members.clear();
+    }
+}
@@ -0,0 +1,179 @@
+package model;
+
+import java.awt.Rectangle;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+// 重疊群組追蹤器，維護互相重疊(遞移)的shape群組
+// 新增時直接合併(小群組併入大群組)；移除或移動時只把原群組標記為 dirty，
+// 等下一次 getGroup 查詢到這個群組時才重新計算連通性，連續的移動或大量移除只重建一次
+// 不用的群組物件和查詢用的暫存清單都會重複使用，拖曳時移除再加入不配置物件
+public class OverlapGroups<T> {
+    private final SpatialIndex<T> index;
+    private final Map<T, Group<T>> groupOf = new IdentityHashMap<>(); // 目前在追蹤中的物件 -> 所在群組
+    private final List<Group<T>> spareGroups = new ArrayList<>(); // 已經沒有成員的群組
+    private final List<T> neighbours = new ArrayList<>();
+    private final List<T> stack = new ArrayList<>();
+    private final Set<T> seen = Collections.newSetFromMap(new IdentityHashMap<>());
+
+    // 一個重疊群組，dirty 時 members 可能含有已移除的物件，且不一定連通
+    private static final class Group<T> {
+        final List<T> members = new ArrayList<>();
+        boolean dirty = false;
+        int stale = 0; // members 中已失效的項目數量(估計值，只用來決定何時壓縮)
+    }
+
+    // @param index 提供物件邊界和鄰居查詢的空間索引，物件必須先加入索引
+    public OverlapGroups(SpatialIndex<T> index) {
+        this.index = index;
+    }
+
+    public void add(T item) { // 加入物件並與所有重疊的物件合併
+        if (groupOf.containsKey(item)) {
+            return;
+        }
+        Group<T> own = newGroup();
+        own.members.add(item);
+        groupOf.put(item, own);
+        Rectangle bounds = index.getBounds(item);
+        if (bounds == null) {
+            return;
+        }
+        neighbours.clear();
+        index.queryRect(bounds, neighbours);
+        for (int i = 0; i < neighbours.size(); i++) {
+            T other = neighbours.get(i);
+            Group<T> otherGroup = other != item ? groupOf.get(other) : null;
+            if (otherGroup != null) {
+                merge(groupOf.get(item), otherGroup);
+            }
+        }
+        neighbours.clear();
+    }
+
+    // 移除物件，原群組只標記為 dirty，不立即重建
+    public void remove(T item) {
+        Group<T> group = groupOf.remove(item);
+        if (group == null) {
+            return;
+        }
+        if (group.members.size() == 1) { // 群組裡只有自己
+            recycle(group);
+            return;
+        }
+        group.dirty = true;
+        group.stale++;
+        if (group.stale > group.members.size() / 2) { // 失效項目太多時先壓縮，避免長時間拖曳讓清單一直變長
+            compact(group);
+        }
+    }
+
+    // 一次移除多個物件(group/ungroup)，受影響的群組之後只重建一次
+    public void removeAll(Collection<T> items) {
+        for (T item : items) {
+            remove(item);
+        }
+    }
+
+    // 取得物件所在的重疊群組(包含自己)，群組是 dirty 時先重新計算
+    public List<T> getGroup(T item) {
+        Group<T> group = groupOf.get(item);
+        if (group == null) {
+            return Collections.singletonList(item);
+        }
+        if (group.dirty) {
+            rebuild(group);
+            group = groupOf.get(item);
+        }
+        return Collections.unmodifiableList(group.members);
+    }
+
+    public void clear() {
+        groupOf.clear();
+        spareGroups.clear();
+    }
+
+    private void merge(Group<T> a, Group<T> b) { // 小群組併入大群組
+        if (a == b) {
+            return;
+        }
+        if (a.members.size() < b.members.size()) {
+            Group<T> tmp = a;
+            a = b;
+            b = tmp;
+        }
+        List<T> moved = b.members;
+        for (int i = 0; i < moved.size(); i++) {
+            T member = moved.get(i);
+            if (groupOf.get(member) == b) {
+                groupOf.put(member, a);
+                a.members.add(member);
+            }
+        }
+        a.dirty |= b.dirty;
+        recycle(b);
+    }
+
+    // 去掉已失效或重複的項目(原地壓縮)，連通性仍然留到查詢時重建
+    private void compact(Group<T> group) {
+        List<T> members = group.members;
+        int live = 0;
+        for (int i = 0; i < members.size(); i++) {
+            T member = members.get(i);
+            if (groupOf.get(member) == group && seen.add(member)) {
+                members.set(live++, member);
+            }
+        }
+        while (members.size() > live) {
+            members.remove(members.size() - 1);
+        }
+        seen.clear();
+        group.stale = 0;
+    }
+
+    private Group<T> newGroup() {
+        return spareGroups.isEmpty() ? new Group<>() : spareGroups.remove(spareGroups.size() - 1);
+    }
+
+    private void recycle(Group<T> group) { // 群組已經沒有物件指向它，清空後留著重複使用
+        group.members.clear();
+        group.dirty = false;
+        group.stale = 0;
+        spareGroups.add(group);
+    }
+
+    // 只在 dirty 群組的成員之間用鄰居查詢做 flood fill，拆成新的連通群組
+    private void rebuild(Group<T> group) {
+        compact(group);
+        List<T> live = group.members;
+        for (int i = 0; i < live.size(); i++) {
+            T start = live.get(i);
+            if (!seen.add(start)) {
+                continue;
+            }
+            Group<T> component = newGroup();
+            stack.add(start);
+            while (!stack.isEmpty()) {
+                T current = stack.remove(stack.size() - 1);
+                component.members.add(current);
+                groupOf.put(current, component);
+                neighbours.clear();
+                index.queryRect(index.getBounds(current), neighbours);
+                for (int j = 0; j < neighbours.size(); j++) {
+                    T other = neighbours.get(j);
+                    if (groupOf.get(other) == group && seen.add(other)) {
+                        stack.add(other);
+                    }
+                }
+            }
+        }
+        neighbours.clear();
+        seen.clear();
+        recycle(group);
+    }
+}
@@ -0,0 +1,79 @@
+package model;
+
+import java.awt.Point;
+import java.awt.Rectangle;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.RecursiveAction;
+
+import link.LinkRouter;
+import shape.Shape;
+
+// 批次繞線的 fork-join 工作，把連線切成小段平行計算路徑
+// 每段只讀同一個 RouteSnapshot 和各自的 Job，結果寫回 Job，由model在 EDT 上一次套用
+// LinkRouter 會重複使用內部的暫存資料，所以每段各自建立一個
+public class RerouteTask extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+    private static final int SPLIT_THRESHOLD = 64; // 每段最多幾條連線
+
+    // 一條連線繞線需要的資料(建立時複製)，path 為計算結果
+    public static final class Job {
+        private final Point start;
+        private final Point end;
+        private final Rectangle fromBounds;
+        private final Rectangle toBounds;
+        private final Shape fromRoot;
+        private final Shape toRoot;
+        private List<Point> path;
+
+        public Job(Point start, Point end, Rectangle fromBounds, Rectangle toBounds, Shape fromRoot, Shape toRoot) {
+            this.start = start != null ? new Point(start) : null;
+            this.end = end != null ? new Point(end) : null;
+            this.fromBounds = fromBounds;
+            this.toBounds = toBounds;
+            this.fromRoot = fromRoot;
+            this.toRoot = toRoot;
+        }
+
+        public List<Point> getPath() { // invoke 結束後才可以讀取
+            return path;
+        }
+    }
+
+    private final RouteSnapshot snapshot;
+    private final Job[] jobs;
+    private final int from, to;
+
+    public RerouteTask(RouteSnapshot snapshot, Job[] jobs, int from, int to) {
+        this.snapshot = snapshot;
+        this.jobs = jobs;
+        this.from = from;
+        this.to = to;
+    }
+
+    @Override
+    protected void compute() {
+        if (to - from > SPLIT_THRESHOLD) {
+            int mid = (from + to) >>> 1;
+            invokeAll(new RerouteTask(snapshot, jobs, from, mid),
+                      new RerouteTask(snapshot, jobs, mid, to));
+            return;
+        }
+        LinkRouter router = new LinkRouter();
+        List<Rectangle> obstacles = new ArrayList<>();
+        List<Shape> candidates = new ArrayList<>();
+        for (int i = from; i < to; i++) {
+            Job job = jobs[i];
+            if (job.start == null || job.end == null) { // 缺少端點時不繞線
+                job.path = new ArrayList<>();
+                if (job.start != null) job.path.add(job.start);
+                if (job.end != null) job.path.add(job.end);
+                continue;
+            }
+            obstacles.clear();
+            Rectangle area = LinkRouter.searchArea(job.start, job.fromBounds, job.end, job.toBounds);
+            snapshot.collectObstacles(area, job.fromRoot, job.toRoot, candidates, obstacles);
+            job.path = router.route(job.start, job.fromBounds, job.end, job.toBounds, obstacles);
+        }
+    }
+}
@@ -0,0 +1,33 @@
+package model;
+
+import java.awt.Rectangle;
+import java.util.List;
+
+import shape.Shape;
+
+// 最上層shape邊界的唯讀快照，批次繞線時讓多個執行緒同時查詢障礙物
+// 用同一個 SpatialIndex 記錄複製的邊界，建立後不再修改，查詢只讀格子表和邊界，不需要同步
+public final class RouteSnapshot {
+    private final SpatialIndex<Shape> index = new SpatialIndex<>();
+
+    public RouteSnapshot(Iterable<Shape> topLevel, SpatialIndex<Shape> source) {
+        for (Shape shape : topLevel) {
+            index.insert(shape, source.getBounds(shape)); // insert 會複製邊界
+        }
+    }
+
+    // 收集和 area 有交集的shape邊界，跳過連線兩端所在的最上層shape
+    // candidates 是呼叫端自己的暫存清單，每個執行緒各用一份
+    public void collectObstacles(Rectangle area, Shape excludeA, Shape excludeB,
+                                 List<Shape> candidates, List<Rectangle> out) {
+        candidates.clear();
+        index.queryRect(area, candidates);
+        for (int i = 0; i < candidates.size(); i++) {
+            Shape shape = candidates.get(i);
+            if (shape != excludeA && shape != excludeB) {
+                out.add(index.getBounds(shape));
+            }
+        }
+        candidates.clear();
+    }
+}
@@ -0,0 +1,119 @@
+package model;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import shape.Shape;
+
+// 最上層shape的容器，以 Shape 的 handle(穩定的 int id)索引，移除後的 id 放進 free list 重複使用
+// 加入、移除、檢查是否存在都是 O(1)；另外記錄種類(basic/composite)，重疊檢查不需要再走訪 visitor
+// 位置、大小和深度不在這裡複製一份：邊界以空間索引記錄的為準，深度直接讀 Shape
+public class ShapeStore implements Iterable<Shape> {
+    public static final byte EMPTY = 0;
+    public static final byte BASIC = 1;
+    public static final byte COMPOSITE = 2;
+    private static final int INITIAL_CAPACITY = 64;
+
+    private byte[] types = new byte[INITIAL_CAPACITY];
+    private Shape[] shapes = new Shape[INITIAL_CAPACITY];
+    private final HandleAllocator handles = new HandleAllocator();
+    private int highWater = 0; // 用過的最大 id + 1，掃描只到這裡
+
+    // 加入shape並配置 id
+    // @return shape的 handle
+    public int add(Shape shape, byte type) {
+        int id = handles.allocate();
+        highWater = handles.getHighWater();
+        if (id >= shapes.length) {
+            grow(shapes.length * 2);
+        }
+        shapes[id] = shape;
+        types[id] = type;
+        shape.setHandle(id);
+        return id;
+    }
+
+    public void remove(Shape shape) {
+        int id = shape.getHandle();
+        if (!contains(shape)) {
+            return;
+        }
+        shapes[id] = null;
+        types[id] = EMPTY;
+        shape.setHandle(-1);
+        handles.release(id);
+    }
+
+    public boolean contains(Shape shape) {
+        int id = shape.getHandle();
+        return id >= 0 && id < highWater && shapes[id] == shape;
+    }
+
+    public int size() {
+        return handles.size();
+    }
+
+    public Shape get(int id) {
+        return shapes[id];
+    }
+
+    public byte getType(int id) {
+        return types[id];
+    }
+
+    public void clear() {
+        for (int id = 0; id < highWater; id++) {
+            if (shapes[id] != null) {
+                shapes[id].setHandle(-1);
+            }
+        }
+        Arrays.fill(shapes, 0, highWater, null);
+        Arrays.fill(types, 0, highWater, EMPTY);
+        highWater = 0;
+        handles.clear();
+    }
+
+    public void copyTo(List<Shape> out) { // 依 id 順序複製所有shape
+        for (int id = 0; id < highWater; id++) {
+            if (shapes[id] != null) {
+                out.add(shapes[id]);
+            }
+        }
+    }
+
+    @Override
+    public Iterator<Shape> iterator() { // 依 id 順序走訪，跳過空的 id
+        return new Iterator<Shape>() {
+            private int next = skipEmpty(0);
+
+            @Override
+            public boolean hasNext() {
+                return next < highWater;
+            }
+
+            @Override
+            public Shape next() {
+                if (next >= highWater) {
+                    throw new NoSuchElementException();
+                }
+                Shape shape = shapes[next];
+                next = skipEmpty(next + 1);
+                return shape;
+            }
+        };
+    }
+
+    private int skipEmpty(int id) {
+        while (id < highWater && shapes[id] == null) {
+            id++;
+        }
+        return id;
+    }
+
+    private void grow(int capacity) {
+        types = Arrays.copyOf(types, capacity);
+        shapes = Arrays.copyOf(shapes, capacity);
+    }
+}
@@ -0,0 +1,237 @@
+package model;
+
+import java.awt.Rectangle;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+// 均勻網格空間索引，用來加速點擊和範圍查詢
+// 每個物件依照邊界放進所有覆蓋到的格子，點查詢只需要看一個格子
+// 格子表以 long 為 key(開放定址)，邊界矩形在更新時原地修改，拖曳時的更新和查詢不配置物件
+public class SpatialIndex<T> {
+    private static final int CELL_SIZE = 128;
+    private static final int MAX_SPARE_CELLS = 64;
+
+    private long[] cellKeys = new long[16];
+    private List<T>[] cellItems = newCells(16); // null 表示空位
+    private int cellCount = 0;
+    private final List<List<T>> spareCells = new ArrayList<>(); // 變空的格子清單，之後建立格子時重複使用
+    private final Map<T, Rectangle> bounds = new IdentityHashMap<>();
+
+    public void insert(T item, Rectangle r) { // 加入物件
+        Rectangle stored = bounds.get(item);
+        if (stored != null) {
+            removeFromCells(item, stored);
+            stored.setBounds(r);
+        } else {
+            stored = new Rectangle(r);
+            bounds.put(item, stored);
+        }
+        addToCells(item, stored);
+    }
+
+    public void remove(T item) { // 移除物件
+        Rectangle old = bounds.remove(item);
+        if (old != null) {
+            removeFromCells(item, old);
+        }
+    }
+
+    // 物件邊界改變時更新，原本記錄的矩形直接改成新的邊界
+    public void update(T item, Rectangle r) {
+        Rectangle old = bounds.get(item);
+        if (old == null) {
+            insert(item, r);
+            return;
+        }
+        if (old.equals(r)) {
+            return;
+        }
+        removeFromCells(item, old);
+        old.setBounds(r);
+        addToCells(item, old);
+    }
+
+    public boolean contains(T item) {
+        return bounds.containsKey(item);
+    }
+
+    // 取得索引中記錄的邊界，回傳的是索引內部的矩形，下一次 update 會被改掉，不可以修改或保留
+    public Rectangle getBounds(T item) {
+        return bounds.get(item);
+    }
+
+    // 找出邊界包含(x, y)的物件(含邊緣，與 Shape.contains 一致)
+    public void queryPoint(int x, int y, Collection<T> out) {
+        List<T> cell = cellAt(key(cellOf(x), cellOf(y)));
+        if (cell == null) {
+            return;
+        }
+        for (int i = 0; i < cell.size(); i++) {
+            T item = cell.get(i);
+            Rectangle r = bounds.get(item);
+            if (x >= r.x && x <= r.x + r.width && y >= r.y && y <= r.y + r.height) {
+                out.add(item);
+            }
+        }
+    }
+
+    // 找出邊界與區域有交集的物件(Rectangle.intersects 的定義)
+    // 跨多個格子的物件只在交集左上角所在的格子回報一次，不需要另外去除重複
+    public void queryRect(Rectangle area, Collection<T> out) {
+        int minCx = cellOf(area.x);
+        int minCy = cellOf(area.y);
+        int maxCx = cellOf(area.x + area.width);
+        int maxCy = cellOf(area.y + area.height);
+        for (int cx = minCx; cx <= maxCx; cx++) {
+            for (int cy = minCy; cy <= maxCy; cy++) {
+                List<T> cell = cellAt(key(cx, cy));
+                if (cell == null) {
+                    continue;
+                }
+                for (int i = 0; i < cell.size(); i++) {
+                    T item = cell.get(i);
+                    Rectangle r = bounds.get(item);
+                    if (r.intersects(area)
+                            && cellOf(Math.max(r.x, area.x)) == cx && cellOf(Math.max(r.y, area.y)) == cy) {
+                        out.add(item);
+                    }
+                }
+            }
+        }
+    }
+
+    public void clear() {
+        Arrays.fill(cellItems, null);
+        cellCount = 0;
+        bounds.clear();
+    }
+
+    private void addToCells(T item, Rectangle r) {
+        for (int cx = cellOf(r.x); cx <= cellOf(r.x + r.width); cx++) {
+            for (int cy = cellOf(r.y); cy <= cellOf(r.y + r.height); cy++) {
+                cellFor(key(cx, cy)).add(item);
+            }
+        }
+    }
+
+    private void removeFromCells(T item, Rectangle r) {
+        for (int cx = cellOf(r.x); cx <= cellOf(r.x + r.width); cx++) {
+            for (int cy = cellOf(r.y); cy <= cellOf(r.y + r.height); cy++) {
+                int slot = find(key(cx, cy));
+                if (slot < 0) {
+                    continue;
+                }
+                List<T> cell = cellItems[slot];
+                removeIdentity(cell, item);
+                if (cell.isEmpty()) {
+                    deleteSlot(slot);
+                    if (spareCells.size() < MAX_SPARE_CELLS) {
+                        spareCells.add(cell);
+                    }
+                }
+            }
+        }
+    }
+
+    private List<T> cellAt(long key) { // 沒有這個格子時回傳 null
+        int slot = find(key);
+        return slot >= 0 ? cellItems[slot] : null;
+    }
+
+    private List<T> cellFor(long key) { // 取得格子，沒有時建立
+        int slot = find(key);
+        if (slot >= 0) {
+            return cellItems[slot];
+        }
+        if ((cellCount + 1) * 2 > cellKeys.length) { // 使用率維持在一半以下
+            rehash(cellKeys.length * 2);
+        }
+        int mask = cellKeys.length - 1;
+        slot = slotOf(key, mask);
+        while (cellItems[slot] != null) {
+            slot = (slot + 1) & mask;
+        }
+        List<T> cell = spareCells.isEmpty() ? new ArrayList<>() : spareCells.remove(spareCells.size() - 1);
+        cellKeys[slot] = key;
+        cellItems[slot] = cell;
+        cellCount++;
+        return cell;
+    }
+
+    private int find(long key) { // linear probing，找不到時回傳 -1
+        int mask = cellKeys.length - 1;
+        int slot = slotOf(key, mask);
+        while (cellItems[slot] != null) {
+            if (cellKeys[slot] == key) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    // 刪除後把同一串後面的項目往前移，不需要墓碑標記
+    private void deleteSlot(int slot) {
+        int mask = cellKeys.length - 1;
+        int hole = slot;
+        for (int i = (slot + 1) & mask; cellItems[i] != null; i = (i + 1) & mask) {
+            int home = slotOf(cellKeys[i], mask);
+            if (((i - home) & mask) >= ((i - hole) & mask)) { // hole 在 home 到 i 之間，可以往前移
+                cellKeys[hole] = cellKeys[i];
+                cellItems[hole] = cellItems[i];
+                hole = i;
+            }
+        }
+        cellItems[hole] = null;
+        cellCount--;
+    }
+
+    private void rehash(int capacity) {
+        long[] oldKeys = cellKeys;
+        List<T>[] oldItems = cellItems;
+        cellKeys = new long[capacity];
+        cellItems = newCells(capacity);
+        int mask = capacity - 1;
+        for (int i = 0; i < oldItems.length; i++) {
+            if (oldItems[i] != null) {
+                int slot = slotOf(oldKeys[i], mask);
+                while (cellItems[slot] != null) {
+                    slot = (slot + 1) & mask;
+                }
+                cellKeys[slot] = oldKeys[i];
+                cellItems[slot] = oldItems[i];
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> List<T>[] newCells(int capacity) {
+        return (List<T>[]) new List<?>[capacity];
+    }
+
+    private static int slotOf(long key, int mask) { // 打散格子座標，避免相鄰格子擠在同一串
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32)) & mask;
+    }
+
+    private static int cellOf(int v) {
+        return Math.floorDiv(v, CELL_SIZE);
+    }
+
+    private static long key(int cx, int cy) {
+        return ((long) cx << 32) | (cy & 0xffffffffL);
+    }
+
+    private static <T> void removeIdentity(List<T> list, T item) { // 以 identity 移除
+        for (int i = list.size() - 1; i >= 0; i--) {
+            if (list.get(i) == item) {
+                list.remove(i);
+                return;
+            }
+        }
+    }
+}
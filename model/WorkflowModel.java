@@ -3,23 +3,66 @@ package model;
 import java.awt.Point;
 import java.awt.Rectangle;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
 
+import link.LinkRouter;
 import link.LinkShape;
 import shape.CompositeShape;
 import shape.ConcreteCompositeShape;
 import shape.Shape;
 import shape.ShapeHandler;
+import util.LinkedPortSet;
 import util.PortResult;
 
 // 工作流程 Model 類，負責管理 Shape 和連線
 public class WorkflowModel {
-    private final List<Shape> shapes = new ArrayList<>();
-    private final List<LinkShape> links = new ArrayList<>();
-    private List<Shape> selectedShapes = new ArrayList<>();
+    private final LinkStore links = new LinkStore(); // 所有連線，以 handle 索引
+    private final List<Shape> selectedShapes = new ArrayList<>();
+    private final Set<Shape> selectedSet = Collections.newSetFromMap(new IdentityHashMap<>()); // 繪圖時 O(1) 查詢選取
     private final List<ModelChangeListener> listeners = new ArrayList<>();
+    private final SpatialIndex<Shape> shapeIndex = new SpatialIndex<>(); // 最上層shape的空間索引
+    private final OverlapGroups<Shape> overlapGroups = new OverlapGroups<>(shapeIndex); // 最上層shape的重疊群組
+    private final DrawOrder drawOrder = new DrawOrder(); // 依深度排序的最上層shape
+    private final ShapeStore shapeStore = new ShapeStore(); // 最上層shape的容器，以 handle 索引
+    private final DepthManager depthManager = new DepthManager(); // 最上層shape的深度分布
+    private final Map<Shape, List<LinkShape>> incidentLinks = new IdentityHashMap<>(); // shape -> 連到它的連線
+    private final LinkedPortSet linkedPorts = new LinkedPortSet(); // 所有連線端點(參考計數)
+    private final Map<LinkShape, Point[]> registeredPorts = new IdentityHashMap<>(); // 連線目前登記的端點
+    // 以上次通知時的重繪範圍建立的空間索引，繪圖時只取出可見範圍內的物件
+    private final SpatialIndex<Shape> paintedShapes = new SpatialIndex<>();
+    private final SpatialIndex<LinkShape> paintedLinks = new SpatialIndex<>();
+    private final List<Shape> notifiedSelection = new ArrayList<>(); // 上次通知時的選取
+    // 正交繞線：記錄每條連線路徑的範圍，最上層shape改變時只重新繞線範圍有交集的連線
+    private final LinkRouter router = new LinkRouter();
+    private static final int PARALLEL_REROUTE_THRESHOLD = 128; // 連線數量超過時改用 fork-join 平行繞線
+    private final SpatialIndex<LinkShape> linkCorridors = new SpatialIndex<>();
+    private final OrderedIdentitySet<LinkShape> pendingReroutes = new OrderedIdentitySet<>(); // 依加入順序走訪，不需要 iterator
+    private final List<LinkShape> rerouteBatch = new ArrayList<>(); // 重新繞線時重複使用
+    private final List<Shape> obstacleShapes = new ArrayList<>(); // 繞線時重複使用
+    private final List<Shape> areaHits = new ArrayList<>(); // 範圍查詢時重複使用
+    private final Rectangle queryArea = new Rectangle();
+    private final List<Rectangle> obstacleBounds = new ArrayList<>();
+    private final Rectangle fromPlaced = new Rectangle(); // 繞線時兩端shape的邊界和搜尋範圍
+    private final Rectangle toPlaced = new Rectangle();
+    private final Rectangle routeArea = new Rectangle();
+    private final List<LinkShape> corridorHits = new ArrayList<>();
+    
+    // 交易期間的變更會先累積，commit時一次通知
+    private ModelChangeSet pendingChanges = null;
+    private ModelChangeSet spareChanges = new ModelChangeSet(); // 通知完清空後給下一次交易重複使用
+    private int transactionDepth = 0;
+    // 拖曳時每一步都會用到的暫存矩形，重複使用
+    private final Rectangle shapeBounds = new Rectangle();
+    private final Rectangle movedArea = new Rectangle();
+    private final Rectangle rerouteZone = new Rectangle();
+    private final Rectangle repaintBounds = new Rectangle();
+    private final Rectangle damageBounds = new Rectangle();
     
 
     public void addModelChangeListener(ModelChangeListener listener) { // 添加model變更監聽器
@@ -32,49 +75,206 @@ public class WorkflowModel {
         listeners.remove(listener);
     }
 
+    // 開始交易，可以巢狀呼叫，最外層commit時才會通知監聽器
+    public void beginTransaction() {
+        if (transactionDepth++ == 0) {
+            // 監聽器在通知期間又開始交易時，上一個變更集合還在使用中，只能另外建立
+            pendingChanges = spareChanges != null ? spareChanges : new ModelChangeSet();
+            spareChanges = null;
+        }
+    }
+    
+    // 結束交易，將累積的變更合併成一次通知
+    public void commitTransaction() {
+        if (transactionDepth == 0) {
+            throw new IllegalStateException("No transaction in progress");
+        }
+        try {
+            if (transactionDepth == 1) { // 通知前先重新繞線，變更一起放進這次的通知
+                reroutePending();
+            }
+        } finally { // 繞線失敗也要結束交易並送出已記錄的變更，否則之後的交易永遠不會通知
+            if (--transactionDepth == 0) {
+                ModelChangeSet changes = pendingChanges;
+                pendingChanges = null;
+                try {
+                    if (!changes.isEmpty()) {
+                        for (int i = 0; i < listeners.size(); i++) {
+                            listeners.get(i).onModelChanged(changes);
+                        }
+                    }
+                } finally {
+                    changes.clear();
+                    spareChanges = changes;
+                }
+            }
+        }
+    }
+    
+    public boolean isInTransaction() { // 是否在交易中
+        return transactionDepth > 0;
+    }
+
     public void addShape(Shape shape) { // 添加shape
-        shapes.add(shape);
+        indexShape(shape);
         notifyShapeAdded(shape);
+        rerouteIfIdle();
     }
 
     public void removeShape(Shape shape) { // 移除shape
-        shapes.remove(shape);
+        unindexShape(shape);
         notifyShapeRemoved(shape);
+        rerouteIfIdle();
     }
 
-    public void shapeModified(Shape shape) { // 通知shape被修改
+    public void shapeModified(Shape shape) { // 通知shape被修改(包含移動)
+        reindexShape(shape);
         notifyShapeModified(shape);
+        rerouteIfIdle();
     }
 
     public void addLink(LinkShape link) { // 添加連線
         links.add(link);
+        addIncident(link.getFromShape(), link);
+        addIncident(link.getToShape(), link);
+        attachPorts(link);
+        registerLinkPorts(link);
+        if (isInTransaction()) { // 交易中(例如匯入)延到commit時和其他連線一起批次繞線
+            linkCorridors.update(link, link.getRepaintBounds());
+            pendingReroutes.add(link);
+        } else {
+            routeLink(link);
+        }
         notifyLinkAdded(link);
     }
 
     public void removeLink(LinkShape link) { // 移除連線
         links.remove(link);
+        removeIncident(link.getFromShape(), link);
+        removeIncident(link.getToShape(), link);
+        unregisterLinkPorts(link);
+        linkCorridors.remove(link);
+        pendingReroutes.remove(link);
         notifyLinkRemoved(link);
     }
+    
+    private void addIncident(Shape shape, LinkShape link) { // 記錄連線的端點shape
+        if (shape != null) {
+            incidentLinks.computeIfAbsent(shape, s -> new ArrayList<>()).add(link);
+        }
+    }
+    
+    private void removeIncident(Shape shape, LinkShape link) {
+        List<LinkShape> incident = shape != null ? incidentLinks.get(shape) : null;
+        if (incident != null) {
+            incident.remove(link);
+            if (incident.isEmpty()) {
+                incidentLinks.remove(shape);
+            }
+        }
+    }
 
     public void linkModified(LinkShape link) { // 通知連線被修改
+        attachPorts(link); // 端點可能被改到別的port
+        unregisterLinkPorts(link);
+        registerLinkPorts(link);
+        linkCorridors.update(link, link.getRepaintBounds());
         notifyLinkModified(link);
     }
-
+    
+    // 登記連線兩端的port，繪圖時用來顯示已連線的port
+    private void registerLinkPorts(LinkShape link) {
+        Point[] ports = {
+            link.getStart() != null ? new Point(link.getStart()) : null,
+            link.getEnd() != null ? new Point(link.getEnd()) : null
+        };
+        linkedPorts.add(ports[0]);
+        linkedPorts.add(ports[1]);
+        registeredPorts.put(link, ports);
+    }
+    
+    // 端點移動後更新登記的座標，沿用原本的陣列和 Point
+    private void reregisterLinkPorts(LinkShape link) {
+        Point[] ports = registeredPorts.get(link);
+        if (ports == null) {
+            registerLinkPorts(link);
+            return;
+        }
+        linkedPorts.remove(ports[0]);
+        linkedPorts.remove(ports[1]);
+        ports[0] = copyPoint(link.getStart(), ports[0]);
+        ports[1] = copyPoint(link.getEnd(), ports[1]);
+        linkedPorts.add(ports[0]);
+        linkedPorts.add(ports[1]);
+    }
+    
+    private static Point copyPoint(Point source, Point target) { // source 為 null 時回傳 null
+        if (source == null) {
+            return null;
+        }
+        if (target == null) {
+            return new Point(source);
+        }
+        target.setLocation(source);
+        return target;
+    }
+    
+    private void unregisterLinkPorts(LinkShape link) {
+        Point[] ports = registeredPorts.remove(link);
+        if (ports != null) {
+            linkedPorts.remove(ports[0]);
+            linkedPorts.remove(ports[1]);
+        }
+    }
+    
     public void setSelectedShapes(List<Shape> shapes) { // 設置選中的shape
-        selectedShapes = new ArrayList<>(shapes);
+        selectedShapes.clear();
+        selectedShapes.addAll(shapes);
         notifySelectionChanged();
     }
 
     public List<Shape> getSelectedShapes() { // 取得選中的shape
         return new ArrayList<>(selectedShapes);
     }
+    
+    public boolean isSelected(Shape shape) { // O(1) 檢查shape是否被選中
+        return selectedSet.contains(shape);
+    }
+    
+    public LinkedPortSet getLinkedPorts() { // 取得所有連線端點，供繪圖查詢
+        return linkedPorts;
+    }
 
     public List<Shape> getAllShapes() { // 取得所有shape
-        return new ArrayList<>(shapes);
+        List<Shape> all = new ArrayList<>(shapeStore.size());
+        shapeStore.copyTo(all);
+        return all;
     }
 
     public List<LinkShape> getAllLinks() { // 取得所有連線
-        return new ArrayList<>(links);
+        List<LinkShape> all = new ArrayList<>(links.size());
+        links.copyTo(all);
+        return all;
+    }
+
+    public boolean containsShape(Shape shape) { // O(1) 檢查是否為model中的最上層shape
+        return shapeStore.contains(shape);
+    }
+
+    public boolean containsLink(LinkShape link) { // O(1) 檢查連線是否在model中
+        return links.contains(link);
+    }
+    
+    // 取得重繪範圍和 area 有交集的最上層shape，由下往上排序
+    public void getShapesInArea(Rectangle area, List<Shape> out) {
+        int start = out.size();
+        paintedShapes.queryRect(area, out);
+        out.subList(start, out.size()).sort(drawOrder::compare);
+    }
+    
+    // 取得重繪範圍和 area 有交集的連線
+    public void getLinksInArea(Rectangle area, List<LinkShape> out) {
+        paintedLinks.queryRect(area, out);
     }
     
     // 找到指定座標處最上層的shape
@@ -84,8 +284,11 @@ public class WorkflowModel {
         List<Shape> compositeCandidates = new ArrayList<>();
         
         // 使用 ShapeHandler 來收集候選shape，下面有寫一個 ClickCandidateCollector 來 implements ShapeHandler 
+        // 只檢查空間索引中邊界包含點擊位置的shape
+        List<Shape> hits = new ArrayList<>();
+        shapeIndex.queryPoint(x, y, hits);
         ClickCandidateCollector collector = new ClickCandidateCollector(x, y);
-        for (Shape shape : shapes) { // 這邊就在做多型了
+        for (Shape shape : hits) { // 這邊就在做多型了
             shape.accept(collector); // 看傳進去的是Shape還是Composite shape
             if (collector.isCandidate()) {
                 if (collector.isCompositeCandidate()) {
@@ -99,8 +302,14 @@ public class WorkflowModel {
         
         // 如果點擊在composite shape的子shape上，直接返回composite shape(不檢查深度)
         if (!compositeCandidates.isEmpty()) {
-            // 如果有多個composite shape，返回第一個找到的
-            return compositeCandidates.get(0);
+            // 如果有多個composite shape，返回繪製順序最上層的
+            Shape front = compositeCandidates.get(0);
+            for (Shape composite : compositeCandidates) {
+                if (drawOrder.compare(composite, front) > 0) {
+                    front = composite;
+                }
+            }
+            return front;
         }
         
         // 否則處理basic shape，需要檢查深度和重疊群組
@@ -118,36 +327,26 @@ public class WorkflowModel {
             // 找出所有包含點擊位置的shape的重疊群組
             Set<Shape> overlappingGroup = getOverlappingGroup(candidates);
             
-            // 在包含點擊位置的shape中找出深度最大的
+            // 在包含點擊位置的shape中找出繪製順序最上層的
+            // 深度重新編號後相鄰的層可能合併成同一個深度，所以和繪製一樣用 drawOrder 比較，不能只比深度
             Shape topMost = null;
-            int maxDepth = -1;
             
             for (Shape shape : candidates) {
-                if (shape.getDepth() > maxDepth) {
-                    // 確認這個shape在其重疊群組中是最上層的
+                if (topMost == null || drawOrder.compare(shape, topMost) > 0) {
+                    // 確認這個shape在其重疊群組中是最上層的(邊界直接用空間索引記錄的矩形，不建立 Rectangle)
                     boolean isTopInGroup = true;
-                    Rectangle shapeRect = new Rectangle(
-                        shape.getX(), shape.getY(),
-                        shape.getWidth(), shape.getHeight()
-                    );
+                    Rectangle bounds = shapeIndex.getBounds(shape);
                     
                     for (Shape other : overlappingGroup) {
-                        if (other != shape) {
-                            Rectangle otherRect = new Rectangle(
-                                other.getX(), other.getY(),
-                                other.getWidth(), other.getHeight()
-                            );
-                            
-                            if (shapeRect.intersects(otherRect) && other.getDepth() > shape.getDepth()) { // 下面的物件深度比較大的情況下就是false
-                                isTopInGroup = false;
-                                break;
-                            }
+                        if (other != shape && drawOrder.compare(other, shape) > 0
+                                && shapeIndex.getBounds(other).intersects(bounds)) { // 有交集的物件畫在上面的情況下就是false
+                            isTopInGroup = false;
+                            break;
                         }
                     }
                     
                     if (isTopInGroup) {
-                        maxDepth = shape.getDepth(); // 各群basic物件深度最大的
-                        topMost = shape;
+                        topMost = shape; // 各群basic物件繪製順序最上層的
                     }
                 }
             }
@@ -179,13 +378,10 @@ public class WorkflowModel {
         
         @Override
         public void handleCompositeShape(CompositeShape composite) {
-            // 檢查點擊是否在任何子shape內
-            for (Shape child : composite.getChildren()) {
-                if (child.contains(x, y)) {
-                    isCandidate = true;
-                    isCompositeCandidate = true; // 因為是composite物件，所以要為true
-                    return;
-                }
+            // 檢查點擊是否在任何子shape內，巢狀group會一路找到basic shape，邊界外的子樹直接略過
+            if (composite.containsLeaf(x, y)) {
+                isCandidate = true;
+                isCompositeCandidate = true; // 因為是composite物件，所以要為true
             }
         }
         
@@ -204,38 +400,12 @@ public class WorkflowModel {
     }
     
     // 獲取包含指定shape集合的重疊群組
-    // 使用遞迴方式找出所有相互重疊的shape
+    // 直接合併 overlapGroups 中已維護好的群組，不需要重新掃描
     private Set<Shape> getOverlappingGroup(List<Shape> initialShapes) {
         Set<Shape> group = new HashSet<>(initialShapes);
-        Set<Shape> toCheck = new HashSet<>(initialShapes); // 要被 check 是否加進 group的集合
-        
-        while (!toCheck.isEmpty()) {
-            Set<Shape> newOverlaps = new HashSet<>(); // 用來操作給每一輪加進 group 的中介集合
-            
-            for (Shape checkShape : toCheck) { // 要把用來 check 集合的物件畫出來
-                Rectangle checkRect = new Rectangle(
-                    checkShape.getX(), checkShape.getY(),
-                    checkShape.getWidth(), checkShape.getHeight()
-                );
-                
-                for (Shape shape : shapes) {
-                    if (!group.contains(shape)) { // 找 group 以外的shape 有無跟group的shape有交集
-                        Rectangle shapeRect = new Rectangle(
-                            shape.getX(), shape.getY(),
-                            shape.getWidth(), shape.getHeight()
-                        );
-                        
-                        if (checkRect.intersects(shapeRect)) {
-                            newOverlaps.add(shape);
-                        }
-                    }
-                }
-            }
-            
-            toCheck = newOverlaps;
-            group.addAll(newOverlaps);
+        for (Shape shape : initialShapes) {
+            group.addAll(overlapGroups.getGroup(shape));
         }
-        
         return group;
     }
     
@@ -247,14 +417,15 @@ public class WorkflowModel {
         if (shape != null) {
             if (!addToSelection) {
                 selectedShapes.clear();
+                selectedSet.clear();
             }
         
             // 如果點到的是已選中的shape，則取消選中
-            if (selectedShapes.contains(shape) && addToSelection) {
+            if (addToSelection && selectedSet.remove(shape)) {
                 selectedShapes.remove(shape);
             } else {
-                // 否則添加到選中列表
-                if (!selectedShapes.contains(shape)) {
+                // 否則添加到選中列表，用 selectedSet 判斷是否已選取
+                if (selectedSet.add(shape)) {
                     selectedShapes.add(shape);
                 }
             }
@@ -266,37 +437,24 @@ public class WorkflowModel {
     // 根據框選區域選擇shape
     public void selectShapesInRect(Rectangle selectionRect, boolean addToSelection) {
         List<Shape> newSelection = new ArrayList<>();
-        Set<Shape> processedChildren = new HashSet<>();
-        
-        // 使用 ShapeHandler 處理不同類型的shape
-        RectSelectionHandler handler = new RectSelectionHandler(selectionRect, processedChildren);
-        
-        // 第一步：處理所有shape
-        for (Shape shape : shapes) {
-            shape.accept(handler);
-            if (handler.shouldSelect()) {
-                newSelection.add(shape);
-                handler.reset();
-            }
-        }
         
-        // 第二步：處理未被composite shape包含的basic shape
+        // 只看空間索引中和選擇框有交集的最上層shape，再檢查索引記錄的邊界是否完全在框內，依繪製順序處理
+        // composite的邊界緊貼所有子shape，邊界在選擇框內就等於所有子shape都在框內
+        areaHits.clear();
+        shapeIndex.queryRect(selectionRect, areaHits);
         List<Shape> candidateBasicShapes = new ArrayList<>();
-        for (Shape shape : shapes) {
-            BasicShapeChecker checker = new BasicShapeChecker();
-            shape.accept(checker);
-            
-            if (checker.isBasicShape() && !processedChildren.contains(shape)) {
-                Rectangle shapeBounds = new Rectangle(
-                    shape.getX(), shape.getY(), 
-                    shape.getWidth(), shape.getHeight()
-                );
-                
-                if (selectionRect.contains(shapeBounds)) {
-                    candidateBasicShapes.add(shape);
-                }
+        for (Shape shape : areaHits) {
+            if (!selectionRect.contains(shapeIndex.getBounds(shape))) {
+                continue;
+            }
+            if (shapeStore.getType(shape.getHandle()) == ShapeStore.COMPOSITE) { // 第一步：composite shape直接選取
+                newSelection.add(shape);
+            } else { // 第二步：basic shape留到深度檢查
+                candidateBasicShapes.add(shape);
             }
         }
+        newSelection.sort(drawOrder::compare);
+        candidateBasicShapes.sort(drawOrder::compare);
         
         // 第三步：對basic shape進行深度檢查
         for (Shape shape : candidateBasicShapes) {
@@ -309,10 +467,11 @@ public class WorkflowModel {
             // 更新選擇
             if (!addToSelection) {
                 selectedShapes.clear();
+                selectedSet.clear();
             }
         
         for (Shape shape : newSelection) {
-            if (!selectedShapes.contains(shape)) {
+            if (selectedSet.add(shape)) { // O(1) 判斷是否已選取，大量框選時不會變成 O(n²)
                 selectedShapes.add(shape);
             }
         }
@@ -321,134 +480,20 @@ public class WorkflowModel {
     }
 }
     
-    // rect選擇處理器
-    private class RectSelectionHandler implements ShapeHandler {
-        private final Rectangle selectionRect;
-        private final Set<Shape> processedChildren;
-        private boolean shouldSelect = false;
-        
-        public RectSelectionHandler(Rectangle selectionRect, Set<Shape> processedChildren) {
-            this.selectionRect = selectionRect;
-            this.processedChildren = processedChildren;
-        }
-        
-        @Override
-        public void handleBasicShape(Shape shape) {
-            // basic shape 在後續處理
-            shouldSelect = false;
-        }
-        
-        @Override
-        public void handleCompositeShape(CompositeShape composite) {
-            List<Shape> children = composite.getChildren();
-            
-            if (!children.isEmpty()) {
-                boolean allChildrenInRect = true;
-                
-                for (Shape child : children) {
-                    Rectangle childBounds = new Rectangle(
-                        child.getX(), child.getY(),
-                        child.getWidth(), child.getHeight()
-                    );
-                    
-                    if (!selectionRect.contains(childBounds)) {
-                        allChildrenInRect = false;
-                        break;
-                    }
-                }
-                
-                // 如果所有子shape都在選擇框內，選中composite shape
-                if (allChildrenInRect) {
-                    shouldSelect = true;
-                    processedChildren.addAll(children);
-                }
-            }
-        }
-        
-        public boolean shouldSelect() {
-            return shouldSelect;
-        }
-        
-        public void reset() {
-            shouldSelect = false;
-        }
-    }
-    
-    // basic shape檢查器
-    private class BasicShapeChecker implements ShapeHandler {
-        private boolean isBasic = false;
-        
-        @Override
-        public void handleBasicShape(Shape shape) {
-            isBasic = true;
-        }
-        
-        @Override
-        public void handleCompositeShape(CompositeShape composite) {
-            isBasic = false;
-        }
-        
-        public boolean isBasicShape() {
-            return isBasic;
-        }
-    }
-    
     // 檢查shape是否是其重疊群組中的最上層
     // 使用多型方式
     private boolean isTopMostInOverlappingGroup(Shape target) {
-        // 使用 ShapeHandler 檢查是否為composite shape
-        CompositeChecker checker = new CompositeChecker();
-        target.accept(checker);
-        
         // composite shape沒有深度，不需要檢查
-        if (checker.isComposite()) {
+        if (shapeStore.getType(target.getHandle()) == ShapeStore.COMPOSITE) {
             return true;
         }
         
-        Rectangle targetRect = new Rectangle( // 這是新建出來的 rect 或 oval
-            target.getX(), target.getY(),
-            target.getWidth(), target.getHeight()
-        );
-        
-        // 找出所有與目標shape重疊的basic shape
-        List<Shape> overlappingShapes = new ArrayList<>();
-        overlappingShapes.add(target);
-        
-        for (Shape shape : shapes) {
-            if (shape != target) { // 每一個在shapes裡面的基本 shape 都去檢查有沒有跟新建的基本 shape 重疊
-                CompositeChecker shapeChecker = new CompositeChecker();
-                shape.accept(shapeChecker);
-                
-                if (!shapeChecker.isComposite()) { 
-                    Rectangle shapeRect = new Rectangle(
-                        shape.getX(), shape.getY(),
-                        shape.getWidth(), shape.getHeight()
-                    );
-                    
-                    if (targetRect.intersects(shapeRect)) {
-                        overlappingShapes.add(shape);
-                    }
-                }
-            }
-        }
-        
-        // 獲取完整的重疊群組(只包含basic shape)
-        Set<Shape> group = getOverlappingGroup(overlappingShapes);
-        
-        // 檢查目標shape是否有最高深度
-        for (Shape shape : group) {
-            CompositeChecker groupChecker = new CompositeChecker();
-            shape.accept(groupChecker);
-            
-            if (shape != target && !groupChecker.isComposite() && shape.getDepth() > target.getDepth()) {
-                Rectangle shapeRect = new Rectangle(
-                    shape.getX(), shape.getY(),
-                    shape.getWidth(), shape.getHeight()
-                );
-                
-                if (targetRect.intersects(shapeRect)) {
-                    return false;
-                }
+        // 只需要檢查目標shape所在的重疊群組中和它有交集、畫在它上面的basic shape(同深度時依繪製順序)
+        Rectangle bounds = shapeIndex.getBounds(target);
+        for (Shape shape : overlapGroups.getGroup(target)) {
+            if (shape != target && shapeStore.getType(shape.getHandle()) == ShapeStore.BASIC
+                    && drawOrder.compare(shape, target) > 0 && shapeIndex.getBounds(shape).intersects(bounds)) {
+                return false;
             }
         }
         
@@ -475,87 +520,173 @@ public class WorkflowModel {
     }
     
     // 找到shape包含的最上層composite shape
-    // 使用多型方式
+    // 沿著parent往上走，O(深度)
     public Shape getTopMostComposite(Shape target) {
-        Shape current = target;
-        boolean found;
-
-        do {
-            found = false;
-            for (Shape s : shapes) {
-                CompositeContainmentChecker checker = new CompositeContainmentChecker(current);
-                s.accept(checker);
-                
-                if (checker.containsTarget()) {
-                    current = s;
-                    found = true;
-                    break;
-                }
+        return target.getRoot();
+    }
+    
+    public boolean isTopMostInGroup(Shape target) {  // 檢查shape是否是其重疊組中的最上層
+        Rectangle bounds = shapeIndex.getBounds(target);
+        if (bounds == null) { // 不是最上層shape
+            return true;
+        }
+        areaHits.clear();
+        shapeIndex.queryRect(bounds, areaHits);
+        for (Shape other : areaHits) {
+            if (other != target && drawOrder.compare(other, target) > 0) {
+                return false;
             }
-        } while (found);
-
-        return current;
+        }
+        return true;
     }
     
-    // composite shape 包含檢查器
-    private class CompositeContainmentChecker implements ShapeHandler {
-        private final Shape target;
-        private boolean contains = false;
-        
-        public CompositeContainmentChecker(Shape target) {
-            this.target = target;
+    public void bringToFront(Shape shape) { // 將shape提到最前面
+        int depth = shape.getDepth();
+        if (depth == depthManager.getMaxDepth() && depthManager.getCount(depth) == 1) {
+            return; // 已經單獨在最上層，深度不需要再增加
         }
-        
-        @Override
-        public void handleBasicShape(Shape shape) {
-            contains = false;
+        beginTransaction();
+        try {
+            changeDepth(shape, allocateFrontDepth());
+        } finally {
+            commitTransaction();
         }
-        
-        @Override
-        public void handleCompositeShape(CompositeShape composite) {
-            contains = composite.getChildren().contains(target);
+    }
+    
+    public void sendToBack(Shape shape) { // 將shape移到最後面
+        int depth = shape.getDepth();
+        if (depth == depthManager.getMinDepth() && depthManager.getCount(depth) == 1) {
+            return;
+        }
+        beginTransaction();
+        try {
+            if (depthManager.getMinDepth() <= 0) {
+                compactDepths(1); // 空出深度 0
+            }
+            changeDepth(shape, depthManager.getMinDepth() - 1);
+        } finally {
+            commitTransaction();
         }
-        
-        public boolean containsTarget() {
-            return contains;
+    }
+    
+    // 往前一層：移到上一層和再上一層之間，深度和其他shape都不相同，點擊判斷和繪製順序才會一致
+    public void bringForward(Shape shape) {
+        int depth = shape.getDepth();
+        if (depthManager.nextAbove(depth) < 0) {
+            if (depthManager.getCount(depth) > 1) { // 和同深度的shape並列最上層，移到它們上面
+                bringToFront(shape);
+            }
+            return;
+        }
+        beginTransaction();
+        try {
+            if (depthManager.getMaxDepth() >= DepthManager.MAX_DEPTH) {
+                compactDepths(0); // 先空出上面的深度
+            }
+            int above = depthManager.nextAbove(shape.getDepth());
+            if (depthManager.nextAbove(above) == above + 1) { // 沒有空位時把更上面的往上推一格
+                shiftDepths(above + 1, 1);
+            }
+            changeDepth(shape, above + 1);
+        } finally {
+            commitTransaction();
         }
     }
     
-    public boolean isTopMostInGroup(Shape target) {  // 檢查shape是否是其重疊組中的最上層
-        Rectangle rect = new Rectangle(target.getX(), target.getY(), target.getWidth(), target.getHeight());
-        for (Shape other : shapes) {
-            if (other == target) continue;
-            Rectangle orect = new Rectangle(other.getX(), other.getY(), other.getWidth(), other.getHeight());
-            if (orect.intersects(rect) && other.getDepth() > target.getDepth()) {
-                return false;
+    // 往後一層：移到下一層和再下一層之間
+    public void sendBackward(Shape shape) {
+        int depth = shape.getDepth();
+        if (depthManager.nextBelow(depth) < 0) {
+            if (depthManager.getCount(depth) > 1) {
+                sendToBack(shape);
             }
+            return;
         }
-        return true;
+        beginTransaction();
+        try {
+            if (depthManager.getMaxDepth() >= DepthManager.MAX_DEPTH) {
+                compactDepths(0);
+            }
+            int below = depthManager.nextBelow(shape.getDepth());
+            if (depthManager.nextBelow(below) == below - 1) { // 沒有空位(包含 below 為 0)時把下一層以上往上推一格
+                shiftDepths(below, 1);
+                changeDepth(shape, below);
+            } else {
+                changeDepth(shape, below - 1);
+            }
+        } finally {
+            commitTransaction();
+        }
+    }
+    
+    public int getMaxDepth() { // 所有最上層shape中最大的深度，沒有shape時為 -1
+        return depthManager.getMaxDepth();
     }
     
-    public void bringToFront(Shape shape) { // 將shape提到前面(增加深度)
-        int maxDepth = shapes.stream().mapToInt(Shape::getDepth).max().orElse(0);
-        shape.setDepth(maxDepth + 1);
+    // 新shape放在最上層時使用的深度，深度用完時先重新編號
+    public int allocateFrontDepth() {
+        if (depthManager.getMaxDepth() >= DepthManager.MAX_DEPTH) {
+            compactDepths(0);
+        }
+        return depthManager.getMaxDepth() + 1;
+    }
+    
+    private void changeDepth(Shape shape, int depth) {
+        shape.setDepth(depth);
+        reindexShape(shape);
         notifyShapeModified(shape);
     }
     
+    // 依目前的上下順序把深度重新編號成從 base 開始的連續值，所有變更合併成一次通知
+    private void compactDepths(int base) {
+        renumberDepths(depthManager.renumberTable(base));
+    }
+    
+    // 深度 from 以上的shape全部加上 delta，上下順序不變
+    private void shiftDepths(int from, int delta) {
+        int[] table = new int[depthManager.getMaxDepth() + 1];
+        for (int d = 0; d < table.length; d++) {
+            table[d] = d >= from ? d + delta : d;
+        }
+        renumberDepths(table);
+    }
+    
+    private void renumberDepths(int[] table) { // 依對照表(舊深度 -> 新深度)更新所有最上層shape
+        beginTransaction();
+        try {
+            for (int i = 0; i < drawOrder.size(); i++) {
+                Shape shape = drawOrder.get(i);
+                int depth = table[shape.getDepth()];
+                if (depth != shape.getDepth()) {
+                    shape.setDepth(depth);
+                    notifyShapeModified(shape);
+                }
+            }
+            drawOrder.renumbered(); // 順序不變，只更新排序用的key
+            depthManager.applyRenumber(table);
+        } finally {
+            commitTransaction();
+        }
+    }
+    
     public void assignDepthByOverlapGroup(Shape newShape) { // 分配新建shape的深度，基於重疊關係
-        Rectangle newRect = new Rectangle(newShape.getX(), newShape.getY(), newShape.getWidth(), newShape.getHeight());
+        queryArea.setBounds(newShape.getX(), newShape.getY(), newShape.getWidth(), newShape.getHeight());
+        areaHits.clear();
+        shapeIndex.queryRect(queryArea, areaHits);
         int maxDepthInOverlap = -1;
-        for (Shape s : shapes) {
-            Rectangle r = new Rectangle(s.getX(), s.getY(), s.getWidth(), s.getHeight());
-            if (r.intersects(newRect)) {
-                maxDepthInOverlap = Math.max(maxDepthInOverlap, s.getDepth());
-            }
+        for (Shape shape : areaHits) {
+            maxDepthInOverlap = Math.max(maxDepthInOverlap, shape.getDepth());
         }
         newShape.setDepth(maxDepthInOverlap + 1);
     }
 
     public Point getPortAt(Shape shape, int x, int y) { // 找到shape上指定座標處的port
         // 不需要額外檢查，因為傳入的 shape 應該已經是 getTopMostShapeAt 返回的最上層shape
-        for (Point p : shape.getConnectionPorts()) {
-            if (new Rectangle(p.x - 5, p.y - 5, 10, 10).contains(x, y)) {
-                return p;
+        for (int i = 0; i < shape.getPortCount(); i++) {
+            int px = shape.getPortX(i);
+            int py = shape.getPortY(i);
+            if (x >= px - 5 && x < px + 5 && y >= py - 5 && y < py + 5) { // port方塊 10x10
+                return new Point(px, py);
             }
         }
         return null;
@@ -565,94 +696,358 @@ public class WorkflowModel {
         Shape topShape = getTopMostShapeAt(x, y);
         if (topShape == null) return null;
 
-        Point best = null;
-        double bestDist = Double.MAX_VALUE;
-        for (Point p : topShape.getConnectionPorts()) {
-            double dist = p.distance(x, y);
-            if (dist <= threshold && dist < bestDist) { // 線長度小於15 且 座標點
+        int best = -1;
+        long bestDist = (long) threshold * threshold;
+        for (int i = 0; i < topShape.getPortCount(); i++) {
+            long dx = topShape.getPortX(i) - x;
+            long dy = topShape.getPortY(i) - y;
+            long dist = dx * dx + dy * dy; // 比較距離平方即可
+            if (dist <= bestDist && (best < 0 || dist < bestDist)) { // 線長度小於15 且 座標點
                 bestDist = dist;
-                best = p;
+                best = i;
             }
         }
-        return best != null ? new PortResult(topShape, best) : null;
+        return best >= 0 ? new PortResult(topShape, new Point(topShape.getPortX(best), topShape.getPortY(best))) : null;
     }
 
-    public void updateConnectedLinks() { // 更新所有連接到選定shape的連線
-        boolean modified = false;
-        
+    public void updateConnectedLinks() { // 更新所有連線
         for (LinkShape link : links) {
-            if (link.getFromShape() != null) {
-                Point closestPort = null;
-                
-                // 使用多型代替 instanceof 判斷
-                PortResult result = getLinkPort(link.getFromShape(), link.getStart());
-                if (result != null) {
-                    closestPort = result.getPort();
-                }
-                
-                if (closestPort != null) {
-                    link.setStart(closestPort);
-                    modified = true;
-                }
+            if (refreshLinkPorts(link)) {
+                notifyLinkModified(link);
             }
-            
-            if (link.getToShape() != null) {
-                Point closestPort = null;
-                
-                // 使用多型代替 instanceof 判斷
-                PortResult result = getLinkPort(link.getToShape(), link.getEnd());
-                if (result != null) {
-                    closestPort = result.getPort();
-                }
-                
-                if (closestPort != null) {
-                    link.setEnd(closestPort);
-                    modified = true;
-                }
+        }
+    }
+    
+    // 只更新連接到指定shape(包含其所有子物件)的連線
+    public void updateConnectedLinks(Shape moved) {
+        IncidentLinkCollector collector = new IncidentLinkCollector();
+        moved.accept(collector);
+        for (LinkShape link : collector.getLinks()) {
+            if (refreshLinkPorts(link)) {
+                notifyLinkModified(link);
             }
-            
-            // 更新路徑
-            if (modified) {
-                List<Point> newPath = new ArrayList<>();
-                if (link.getStart() != null) newPath.add(link.getStart());
-                if (link.getEnd() != null) newPath.add(link.getEnd());
-                link.setPath(newPath);
+        }
+    }
+    
+    // 只更新指定的連線，拖曳時連線集合不變，開始時收集一次即可
+    public void updateLinks(List<LinkShape> affected) {
+        for (int i = 0; i < affected.size(); i++) {
+            LinkShape link = affected.get(i);
+            if (refreshLinkPorts(link)) {
                 notifyLinkModified(link);
             }
         }
     }
     
-    // 使用多型獲取連接點
-    private PortResult getLinkPort(Shape shape, Point oldPort) {
-        LinkPortHandler handler = new LinkPortHandler(oldPort);
-        shape.accept(handler);
-        return handler.getResult();
+    // 移動結束，把group累積的位移寫回子物件，實際座標不變所以不需要通知
+    public void commitMove(Shape shape) {
+        shape.commitTranslation();
+    }
+    
+    // 取得連接到shape(包含其所有子物件)的連線
+    public Set<LinkShape> getConnectedLinks(Shape shape) {
+        IncidentLinkCollector collector = new IncidentLinkCollector();
+        shape.accept(collector);
+        return collector.getLinks();
+    }
+    
+    // 連線收集器，收集shape和其所有子物件上的連線
+    private class IncidentLinkCollector implements ShapeHandler {
+        private final Set<LinkShape> collected = Collections.newSetFromMap(new IdentityHashMap<>());
+        
+        @Override
+        public void handleBasicShape(Shape shape) {
+            addIncidentLinks(shape);
+        }
+        
+        @Override
+        public void handleCompositeShape(CompositeShape composite) {
+            addIncidentLinks(composite);
+            for (Shape child : composite.getChildren()) {
+                child.accept(this);
+            }
+        }
+        
+        private void addIncidentLinks(Shape shape) {
+            List<LinkShape> incident = incidentLinks.get(shape);
+            if (incident != null) {
+                collected.addAll(incident);
+            }
+        }
+        
+        public Set<LinkShape> getLinks() {
+            return collected;
+        }
+    }
+    
+    // 記錄連線兩端目前所在的port(最接近端點的port)，之後移動時端點跟著同一個port走
+    private void attachPorts(LinkShape link) {
+        // 使用多型代替 instanceof 判斷
+        if (link.getFromShape() != null && link.getStart() != null
+                && portMatcher.match(link.getFromShape(), link.getStart())) {
+            link.setStartPort(portMatcher.getShape(), portMatcher.getIndex());
+        } else {
+            link.setStartPort(null, -1);
+        }
+        if (link.getToShape() != null && link.getEnd() != null
+                && portMatcher.match(link.getToShape(), link.getEnd())) {
+            link.setEndPort(portMatcher.getShape(), portMatcher.getIndex());
+        } else {
+            link.setEndPort(null, -1);
+        }
+    }
+    
+    // 把連線兩端移到接上的port目前的位置，回傳是否有改變
+    // 不重新找最近的port：拖曳合併成每個frame一次的大位移時，最接近舊端點的可能是另一個port，連線會跳port
+    private boolean refreshLinkPorts(LinkShape link) {
+        Shape from = link.getStart() != null ? link.getFromShape() : null;
+        Shape to = link.getEnd() != null ? link.getToShape() : null;
+        if (!isAttached(link.getStartPortShape(), link.getStartPortIndex(), from)
+                || !isAttached(link.getEndPortShape(), link.getEndPortIndex(), to)) {
+            attachPorts(link); // group/ungroup後port已經不在端點shape上，依照目前端點重新找一次
+        }
+        boolean modified = moveToPort(link.getStart(), link.getStartPortShape(), link.getStartPortIndex());
+        modified |= moveToPort(link.getEnd(), link.getEndPortShape(), link.getEndPortIndex());
+        
+        // 更新路徑
+        if (modified) {
+            reregisterLinkPorts(link);
+            routeLink(link);
+        }
+        return modified;
     }
 
-    // 連接點處理器
-    private class LinkPortHandler implements ShapeHandler {
-        private final Point oldPort;
-        private PortResult result;
+    // 記錄的port是否仍然是端點shape(或其子物件)上的port，沒有端點時也視為成立
+    private static boolean isAttached(Shape portShape, int index, Shape endpoint) {
+        if (endpoint == null) {
+            return true;
+        }
+        if (portShape == null || index >= portShape.getPortCount()) {
+            return false;
+        }
+        for (Shape s = portShape; s != null; s = s.getParent()) {
+            if (s == endpoint) {
+                return true;
+            }
+        }
+        return false;
+    }
+    
+    // 把端點 p 移到port目前的實際座標(包含group移動中還沒寫回的位移)，回傳是否有移動
+    private static boolean moveToPort(Point p, Shape portShape, int index) {
+        if (p == null || portShape == null) {
+            return false;
+        }
+        int px = portShape.getPortX(index) + portShape.getTranslationX();
+        int py = portShape.getPortY(index) + portShape.getTranslationY();
+        if (p.x == px && p.y == py) {
+            return false;
+        }
+        p.setLocation(px, py);
+        return true;
+    }
+    
+    // 重新計算連線的正交路徑，繞過兩端以外的最上層shape
+    // 兩端的shape在group裡時，障礙物用子shape本身的邊界而不是整個group
+    private void routeLink(LinkShape link) {
+        pendingReroutes.remove(link);
+        Point start = link.getStart();
+        Point end = link.getEnd();
+        if (start == null || end == null) {
+            List<Point> newPath = new ArrayList<>();
+            if (start != null) newPath.add(start);
+            if (end != null) newPath.add(end);
+            link.setPath(newPath);
+            linkCorridors.update(link, link.getRepaintBounds());
+            return;
+        }
+        Shape from = link.getFromShape();
+        Shape to = link.getToShape();
+        Rectangle fromBounds = placedBounds(from, fromPlaced);
+        Rectangle toBounds = placedBounds(to, toPlaced);
+        Shape fromRoot = from != null ? from.getRoot() : null;
+        Shape toRoot = to != null ? to.getRoot() : null;
         
-        public LinkPortHandler(Point oldPort) {
-            this.oldPort = oldPort;
+        obstacleShapes.clear();
+        obstacleBounds.clear();
+        shapeIndex.queryRect(LinkRouter.searchArea(start, fromBounds, end, toBounds, routeArea), obstacleShapes);
+        for (int i = 0; i < obstacleShapes.size(); i++) {
+            Shape shape = obstacleShapes.get(i);
+            if (shape != fromRoot && shape != toRoot) {
+                obstacleBounds.add(shapeIndex.getBounds(shape));
+            }
+        }
+        obstacleShapes.clear();
+        router.route(start, fromBounds, end, toBounds, obstacleBounds, link.getPath()); // 直接改寫連線原本的路徑
+        link.getRepaintBounds(repaintBounds);
+        linkCorridors.update(link, repaintBounds);
+    }
+    
+    // shape目前實際的邊界(包含group移動中還沒寫回的位移)，寫進 bounds 並回傳，shape為 null 時回傳 null
+    private static Rectangle placedBounds(Shape shape, Rectangle bounds) {
+        if (shape == null) {
+            return null;
+        }
+        bounds.setBounds(shape.getX() + shape.getTranslationX(), shape.getY() + shape.getTranslationY(),
+                shape.getWidth(), shape.getHeight());
+        return bounds;
+    }
+    
+    // 路徑經過 area 附近(CLEARANCE 以內)的連線稍後重新繞線
+    // 先用路徑範圍的索引找出候選，再逐段檢查，避免斜跨大範圍的連線每次都被選到
+    private void rerouteAround(Rectangle area) {
+        Rectangle zone = rerouteZone;
+        zone.setBounds(area);
+        zone.grow(LinkRouter.CLEARANCE, LinkRouter.CLEARANCE);
+        corridorHits.clear();
+        linkCorridors.queryRect(zone, corridorHits);
+        for (int i = 0; i < corridorHits.size(); i++) {
+            LinkShape link = corridorHits.get(i);
+            if (LinkRouter.pathIntersects(link.getPath(), zone)) {
+                pendingReroutes.add(link);
+            }
+        }
+        corridorHits.clear();
+    }
+    
+    private void rerouteIfIdle() { // 不在交易中時立即重新繞線
+        if (!isInTransaction()) {
+            reroutePending();
+        }
+    }
+    
+    private void reroutePending() {
+        if (pendingReroutes.isEmpty()) {
+            return;
+        }
+        List<LinkShape> batch = rerouteBatch;
+        batch.clear();
+        for (int i = 0; i < pendingReroutes.size(); i++) {
+            LinkShape link = pendingReroutes.get(i);
+            if (links.contains(link)) {
+                batch.add(link);
+            }
+        }
+        pendingReroutes.clear();
+        try {
+            rerouteLinks(batch);
+        } finally {
+            batch.clear();
+        }
+    }
+    
+    // 數量少時直接在目前的執行緒繞線(拖曳時的情況)
+    // 數量多時在 fork-join pool 上依照shape邊界的快照平行計算，算完再一次寫回並合併成一次通知
+    // 兩種情況都在交易中通知，不在交易中呼叫時也只發出一次合併的通知
+    private void rerouteLinks(List<LinkShape> batch) {
+        if (batch.size() < PARALLEL_REROUTE_THRESHOLD) {
+            beginTransaction();
+            try {
+                for (int i = 0; i < batch.size(); i++) {
+                    LinkShape link = batch.get(i);
+                    routeLink(link);
+                    notifyLinkModified(link);
+                }
+            } finally {
+                commitTransaction();
+            }
+            return;
+        }
+        RouteSnapshot snapshot = new RouteSnapshot(shapeStore, shapeIndex);
+        RerouteTask.Job[] jobs = new RerouteTask.Job[batch.size()];
+        for (int i = 0; i < jobs.length; i++) {
+            LinkShape link = batch.get(i);
+            Shape from = link.getFromShape();
+            Shape to = link.getToShape();
+            jobs[i] = new RerouteTask.Job(link.getStart(), link.getEnd(),
+                    placedBounds(from, new Rectangle()), placedBounds(to, new Rectangle()),
+                    from != null ? from.getRoot() : null, to != null ? to.getRoot() : null);
+        }
+        ForkJoinPool.commonPool().invoke(new RerouteTask(snapshot, jobs, 0, jobs.length));
+        
+        beginTransaction();
+        try {
+            for (int i = 0; i < jobs.length; i++) {
+                LinkShape link = batch.get(i);
+                link.setPath(jobs[i].getPath());
+                linkCorridors.update(link, link.getRepaintBounds());
+                notifyLinkModified(link);
+            }
+        } finally {
+            commitTransaction();
+        }
+    }
+    
+    // 連接點比對器，找出最接近指定點的port
+    // basic shape比對自己的port；composite shape比對所有子物件，子物件都沒有port時才用自己的port
+    // 只記錄shape和port的index，重複使用同一個實例，比對過程不建立物件
+    private class PortMatcher implements ShapeHandler {
+        private int targetX, targetY;
+        private Shape bestShape;
+        private int bestIndex;
+        private long bestDist;
+        private int scanned; // 已比對過有port的shape數量
+        private int offsetX, offsetY; // 目前走訪層級的祖先位移(group移動中尚未寫回)
+        
+        public boolean match(Shape shape, Point oldPort) { // 回傳是否找到port
+            targetX = oldPort.x;
+            targetY = oldPort.y;
+            bestShape = null;
+            bestIndex = -1;
+            bestDist = Long.MAX_VALUE;
+            scanned = 0;
+            offsetX = shape.getTranslationX();
+            offsetY = shape.getTranslationY();
+            shape.accept(this);
+            return bestShape != null;
         }
         
         @Override
         public void handleBasicShape(Shape shape) {
-            Point closest = findClosestPort(shape, oldPort);
-            if (closest != null) {
-                result = new PortResult(shape, closest);
-            }
+            scanPorts(shape);
         }
         
         @Override
         public void handleCompositeShape(CompositeShape composite) {
-            result = findClosestChildPort(composite, oldPort);
+            int before = scanned;
+            offsetX += composite.getOffsetX();
+            offsetY += composite.getOffsetY();
+            for (Shape child : composite.getChildren()) {
+                child.accept(this);
+            }
+            offsetX -= composite.getOffsetX();
+            offsetY -= composite.getOffsetY();
+            // 如果沒有找到子物件的連接點，使用composite shape自己的連接點
+            if (scanned == before) {
+                scanPorts(composite);
+            }
+        }
+        
+        private void scanPorts(Shape shape) { // 找到shape上最接近指定點的port
+            int count = shape.getPortCount();
+            if (count > 0) {
+                scanned++;
+            }
+            for (int i = 0; i < count; i++) {
+                int px = shape.getPortX(i) + offsetX;
+                int py = shape.getPortY(i) + offsetY;
+                long dx = px - targetX;
+                long dy = py - targetY;
+                long d = dx * dx + dy * dy;
+                if (d < bestDist) {
+                    bestDist = d;
+                    bestShape = shape;
+                    bestIndex = i;
+                }
+            }
+        }
+        
+        public Shape getShape() { // 找到的port所屬的shape
+            return bestShape;
         }
         
-        public PortResult getResult() {
-            return result;
+        public int getIndex() { // 找到的port index
+            return bestIndex;
         }
     }
     
@@ -660,91 +1055,87 @@ public class WorkflowModel {
     // 使用多型方式
     public void groupSelectedShapes() {
         if (selectedShapes.size() > 1) {
-            // 創建一個新的composite shape
-            List<Shape> shapesToGroup = new ArrayList<>(selectedShapes);
-            
-            // 確保所有要group的composite shape都有正確的邊界
-            BoundsUpdater boundsUpdater = new BoundsUpdater();
-            for (Shape shape : shapesToGroup) {
-                shape.accept(boundsUpdater);
-            }
-            
-            // 從模型中移除選中的shape
-            for (Shape shape : shapesToGroup) {
-                shapes.remove(shape);
-                notifyShapeRemoved(shape);
+            beginTransaction();
+            try {
+                groupShapes();
+            } finally {
+                commitTransaction();
             }
-            
-            // 創建新的composite shape
-            ConcreteCompositeShape group = new ConcreteCompositeShape(shapesToGroup);
-            
-            // 確保composite shape的邊界是緊密的，僅包含子shape的範圍
-            group.updateBounds();
-            
-            // composite shape不設置深度值
-            
-            // 添加到模型
-            shapes.add(group);
-            
-            // 更新選擇為新的composite shape
-            selectedShapes.clear();
-            selectedShapes.add(group);
-            
-            notifyShapeAdded(group);
-            notifySelectionChanged();
-            
-            // 更新連線
-            updateConnectedLinks();
         }
     }
     
-    // 邊界更新器
-    private class BoundsUpdater implements ShapeHandler {
-        @Override
-        public void handleBasicShape(Shape shape) {
-            // basic shape 不需要更新邊界
-        }
+    private void groupShapes() {
+        // 創建一個新的composite shape
+        List<Shape> shapesToGroup = new ArrayList<>(selectedShapes);
         
-        @Override
-        public void handleCompositeShape(CompositeShape composite) {
-            composite.updateBounds();
+        // 從模型中移除選中的shape，重疊群組一次移除，受影響的群組之後只重建一次
+        overlapGroups.removeAll(shapesToGroup);
+        for (Shape shape : shapesToGroup) {
+            unindexShape(shape);
+            notifyShapeRemoved(shape);
         }
+        
+        // 創建新的composite shape，邊界在第一次讀取時計算，緊貼子shape的範圍
+        ConcreteCompositeShape group = new ConcreteCompositeShape(shapesToGroup);
+        
+        // composite shape不設置深度值
+        
+        // 添加到模型
+        indexShape(group);
+        
+        // 更新選擇為新的composite shape
+        selectedShapes.clear();
+        selectedShapes.add(group);
+        
+        notifyShapeAdded(group);
+        notifySelectionChanged();
+        
+        // 更新連線
+        updateConnectedLinks(group);
     }
     
     // ungroup選取的shape
     // 使用多型方式
     public void ungroupSelectedShape() {
         if (selectedShapes.size() == 1) {
-            Shape shape = selectedShapes.get(0);
+            beginTransaction();
+            try {
+                ungroupShape();
+            } finally {
+                commitTransaction();
+            }
+        }
+    }
+    
+    private void ungroupShape() {
+        Shape shape = selectedShapes.get(0);
+        
+        UngroupHandler ungroupHandler = new UngroupHandler();
+        shape.accept(ungroupHandler);
+        
+        if (ungroupHandler.canUngroup()) {
+            // 從模型中移除這個composite shape
+            unindexShape(shape);
+            notifyShapeRemoved(shape);
             
-            UngroupHandler ungroupHandler = new UngroupHandler();
-            shape.accept(ungroupHandler);
+            // 獲取直接子shape列表
+            List<Shape> directChildren = ungroupHandler.getChildren();
             
-            if (ungroupHandler.canUngroup()) {
-                // 從模型中移除這個composite shape
-                shapes.remove(shape);
-                notifyShapeRemoved(shape);
-                
-                // 獲取直接子shape列表
-                List<Shape> directChildren = ungroupHandler.getChildren();
-                
-                // 將子shape添加到模型中
-                for (Shape child : directChildren) {
-                    // 如果子shape也是composite shape,確保其邊界正確
-                    child.accept(boundsUpdater);
-                    
-                    shapes.add(child);
-                    notifyShapeAdded(child);
-                }
-                
-                // 更新選擇為解構後的子shape
-                selectedShapes.clear();
-                selectedShapes.addAll(directChildren);
-                
-                notifySelectionChanged();
-                
-                // 更新連線
-                updateConnectedLinks();
+            // 將子shape添加到模型中
+            for (Shape child : directChildren) {
+                indexShape(child);
+                notifyShapeAdded(child);
+            }
+            
+            // 更新選擇為解構後的子shape
+            selectedShapes.clear();
+            selectedShapes.addAll(directChildren);
+            
+            notifySelectionChanged();
+            
+            // 更新連線
+            for (Shape child : directChildren) {
+                updateConnectedLinks(child);
             }
         }
     }
@@ -762,7 +1153,7 @@ public class WorkflowModel {
         @Override
         public void handleCompositeShape(CompositeShape composite) {
             canUngroup = true;
-            children = new ArrayList<>(composite.getChildren());
+            children = composite.detachChildren(); // 子shape不再屬於這個group
         }
         
         public boolean canUngroup() {
@@ -774,78 +1165,63 @@ public class WorkflowModel {
         }
     }
     
-    private final BoundsUpdater boundsUpdater = new BoundsUpdater();
+    private final PortMatcher portMatcher = new PortMatcher();
     
-    // 尋找composite shape中最近的子物件連接點
-    private PortResult findClosestChildPort(CompositeShape composite, Point oldPort) {
-        Point closest = null;
-        Shape closestShape = null;
-        double bestDist = Double.MAX_VALUE;
-        
-        for (Shape child : composite.getChildren()) {
-            // 使用多型處理子shape
-            ChildPortFinder finder = new ChildPortFinder(oldPort);
-            child.accept(finder);
-            PortResult childResult = finder.getResult();
-            
-            if (childResult != null) {
-                double dist = childResult.getPort().distance(oldPort);
-                if (dist < bestDist) {
-                    bestDist = dist;
-                    closest = childResult.getPort();
-                    closestShape = childResult.getShape();
-                }
-            }
-        }
-        
-        // 如果沒有找到子物件的連接點，使用composite shape自己的連接點
-        if (closest == null) {
-            closest = findClosestPort(composite, oldPort);
-            closestShape = composite;
-        }
-        
-        return closest != null ? new PortResult(closestShape, closest) : null;
+    // 將最上層shape加入空間索引和重疊群組
+    private void indexShape(Shape shape) {
+        shapeStore.add(shape, typeOf(shape));
+        depthManager.add(shape.getDepth());
+        Rectangle bounds = boundsOf(shape);
+        shapeIndex.insert(shape, bounds);
+        overlapGroups.add(shape);
+        drawOrder.insert(shape);
+        rerouteAround(bounds);
     }
     
-    // 子shape連接點尋找器
-    private class ChildPortFinder implements ShapeHandler {
-        private final Point oldPort;
-        private PortResult result;
-        
-        public ChildPortFinder(Point oldPort) {
-            this.oldPort = oldPort;
-        }
-        
-        @Override
-        public void handleBasicShape(Shape shape) {
-            Point closestPort = findClosestPort(shape, oldPort);
-            if (closestPort != null) {
-                result = new PortResult(shape, closestPort);
-            }
-        }
-        
-        @Override
-        public void handleCompositeShape(CompositeShape composite) {
-            result = findClosestChildPort(composite, oldPort);
-        }
-        
-        public PortResult getResult() {
-            return result;
-        }
+    // 從空間索引和重疊群組中移除最上層shape
+    private void unindexShape(Shape shape) {
+        if (!shapeStore.contains(shape)) {
+            return;
+        }
+        rerouteAround(shapeIndex.getBounds(shape));
+        overlapGroups.remove(shape);
+        shapeIndex.remove(shape);
+        depthManager.remove(drawOrder.getIndexedDepth(shape));
+        drawOrder.remove(shape);
+        shapeStore.remove(shape);
     }
-
-    // 找到shape上最接近指定點的port
-    private Point findClosestPort(Shape shape, Point oldPort) {
-        Point closest = null;
-        double bestDist = Double.MAX_VALUE;
-        for (Point p : shape.getConnectionPorts()) {
-            double d = p.distance(oldPort);
-            if (d < bestDist) {
-                bestDist = d;
-                closest = p;
-            }
+    
+    // 邊界改變時，只在原本的重疊群組內局部重建；深度改變時重新排序
+    private void reindexShape(Shape shape) {
+        Rectangle indexed = shapeIndex.getBounds(shape);
+        if (indexed == null) {
+            return;
+        }
+        if (drawOrder.isStale(shape)) { // 深度改變，舊深度以繪製順序中記錄的為準
+            depthManager.move(drawOrder.getIndexedDepth(shape), shape.getDepth());
+            drawOrder.update(shape);
+        }
+        Rectangle bounds = shapeBounds;
+        bounds.setBounds(shape.getX(), shape.getY(), shape.getWidth(), shape.getHeight());
+        if (!indexed.equals(bounds)) {
+            movedArea.setBounds(indexed);
+            movedArea.add(bounds);
+            rerouteAround(movedArea);
+            overlapGroups.remove(shape);
+            shapeIndex.update(shape, bounds);
+            overlapGroups.add(shape);
         }
-        return closest;
+    }
+    
+    private byte typeOf(Shape shape) { // 容器中記錄的種類
+        CompositeChecker checker = new CompositeChecker();
+        shape.accept(checker);
+        return checker.isComposite() ? ShapeStore.COMPOSITE : ShapeStore.BASIC;
+    }
+    
+    // shape的邊界矩形，用於空間索引
+    private static Rectangle boundsOf(Shape shape) {
+        return new Rectangle(shape.getX(), shape.getY(), shape.getWidth(), shape.getHeight());
     }
     
     // 檢查兩個shape是否有交集
@@ -861,46 +1237,127 @@ public class WorkflowModel {
         return r1.intersects(r2);
     }
     
+    // 重繪範圍計算，記錄上次通知時的範圍，變更時回報舊範圍與新範圍的聯集
+    // 回傳的矩形會在下一次計算時重複使用，監聽器和變更集合只在通知期間讀取
+    private Rectangle shapeDamage(Shape shape, boolean removed) {
+        shape.getRepaintBounds(repaintBounds);
+        return paintedDamage(paintedShapes, shape, repaintBounds, removed);
+    }
+    
+    private Rectangle linkDamage(LinkShape link, boolean removed) {
+        link.getRepaintBounds(repaintBounds);
+        return paintedDamage(paintedLinks, link, repaintBounds, removed);
+    }
+    
+    private <T> Rectangle paintedDamage(SpatialIndex<T> painted, T item, Rectangle current, boolean removed) {
+        Rectangle old = painted.getBounds(item);
+        Rectangle damage = damageBounds;
+        damage.setBounds(current);
+        if (old != null) {
+            damage.add(old);
+        }
+        if (removed) {
+            painted.remove(item);
+        } else {
+            painted.update(item, current);
+        }
+        return damage;
+    }
+    
+    private Rectangle selectionDamage() { // 選取前後所有shape的範圍(port會出現或消失)
+        Rectangle damage = damageBounds;
+        damage.setBounds(0, 0, 0, 0);
+        for (int i = 0; i < notifiedSelection.size(); i++) {
+            notifiedSelection.get(i).getRepaintBounds(repaintBounds);
+            damage.add(repaintBounds);
+        }
+        for (int i = 0; i < selectedShapes.size(); i++) {
+            selectedShapes.get(i).getRepaintBounds(repaintBounds);
+            damage.add(repaintBounds);
+        }
+        notifiedSelection.clear();
+        notifiedSelection.addAll(selectedShapes);
+        return damage;
+    }
+    
     // 通知方法
     private void notifyShapeAdded(Shape shape) {
+        Rectangle damage = shapeDamage(shape, false);
+        if (pendingChanges != null) {
+            pendingChanges.shapeAdded(shape, damage);
+            return;
+        }
         for (ModelChangeListener listener : listeners) {
-            listener.onShapeAdded(shape);
+            listener.onShapeAdded(shape, damage);
         }
     }
     
     private void notifyShapeRemoved(Shape shape) {
+        Rectangle damage = shapeDamage(shape, true);
+        if (pendingChanges != null) {
+            pendingChanges.shapeRemoved(shape, damage);
+            return;
+        }
         for (ModelChangeListener listener : listeners) {
-            listener.onShapeRemoved(shape);
+            listener.onShapeRemoved(shape, damage);
         }
     }
     
     private void notifyShapeModified(Shape shape) {
+        Rectangle damage = shapeDamage(shape, false);
+        if (pendingChanges != null) {
+            pendingChanges.shapeModified(shape, damage);
+            return;
+        }
         for (ModelChangeListener listener : listeners) {
-            listener.onShapeModified(shape);
+            listener.onShapeModified(shape, damage);
         }
     }
     
     private void notifyLinkAdded(LinkShape link) {
+        Rectangle damage = linkDamage(link, false);
+        if (pendingChanges != null) {
+            pendingChanges.linkAdded(link, damage);
+            return;
+        }
         for (ModelChangeListener listener : listeners) {
-            listener.onLinkAdded(link);
+            listener.onLinkAdded(link, damage);
         }
     }
     
     private void notifyLinkRemoved(LinkShape link) {
+        Rectangle damage = linkDamage(link, true);
+        if (pendingChanges != null) {
+            pendingChanges.linkRemoved(link, damage);
+            return;
+        }
         for (ModelChangeListener listener : listeners) {
-            listener.onLinkRemoved(link);
+            listener.onLinkRemoved(link, damage);
         }
     }
     
     private void notifyLinkModified(LinkShape link) {
+        Rectangle damage = linkDamage(link, false);
+        if (pendingChanges != null) {
+            pendingChanges.linkModified(link, damage);
+            return;
+        }
         for (ModelChangeListener listener : listeners) {
-            listener.onLinkModified(link);
+            listener.onLinkModified(link, damage);
         }
     }
     
     private void notifySelectionChanged() {
+        // 所有修改選取的地方最後都會通知，在這裡同步 identity set
+        selectedSet.clear();
+        selectedSet.addAll(selectedShapes);
+        Rectangle damage = selectionDamage();
+        if (pendingChanges != null) {
+            pendingChanges.selectionChanged(selectedShapes, damage);
+            return;
+        }
         for (ModelChangeListener listener : listeners) {
-            listener.onSelectionChanged(selectedShapes);
+            listener.onSelectionChanged(selectedShapes, damage);
         }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,56 @@
+package render;
+
+// 依畫面上的實際大小決定要畫多少細節
+// 門檻都是螢幕像素，縮小到門檻以下時：port、label、箭頭不畫，composite 只畫外框方塊
+public class LevelOfDetail {
+    public static final int PORT_SIZE = 10; // port方塊的邊長(世界座標)
+    public static final int ARROW_SIZE = 14; // 箭頭的長度(世界座標)
+
+    public static final LevelOfDetail FULL = new LevelOfDetail(0, 0, 0, 0); // 全部細節，不受縮放影響
+
+    private final int minPortPixels;
+    private final int minLabelPixels;
+    private final int minArrowPixels;
+    private final int minCompositePixels;
+    private final double scale;
+
+    // @param minPortPixels port方塊小於此值時不畫
+    // @param minLabelPixels label字體小於此值時不畫
+    // @param minArrowPixels 箭頭小於此值時連線只畫直線
+    // @param minCompositePixels composite 較長邊小於此值時只畫外框方塊，不走訪子物件
+    public LevelOfDetail(int minPortPixels, int minLabelPixels, int minArrowPixels, int minCompositePixels) {
+        this(minPortPixels, minLabelPixels, minArrowPixels, minCompositePixels, 1.0);
+    }
+
+    private LevelOfDetail(int minPortPixels, int minLabelPixels, int minArrowPixels, int minCompositePixels, double scale) {
+        this.minPortPixels = minPortPixels;
+        this.minLabelPixels = minLabelPixels;
+        this.minArrowPixels = minArrowPixels;
+        this.minCompositePixels = minCompositePixels;
+        this.scale = scale;
+    }
+
+    public LevelOfDetail atScale(double scale) { // 相同門檻，套用新的縮放比例
+        return scale == this.scale ? this : new LevelOfDetail(minPortPixels, minLabelPixels, minArrowPixels, minCompositePixels, scale);
+    }
+
+    public double getScale() {
+        return scale;
+    }
+
+    public boolean showPorts() {
+        return PORT_SIZE * scale >= minPortPixels;
+    }
+
+    public boolean showLabel(int fontSize) {
+        return fontSize * scale >= minLabelPixels;
+    }
+
+    public boolean showArrowHeads() {
+        return ARROW_SIZE * scale >= minArrowPixels;
+    }
+
+    public boolean drawAsBox(int width, int height) {
+        return Math.max(width, height) * scale < minCompositePixels;
+    }
+}
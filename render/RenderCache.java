@@ -0,0 +1,49 @@
+package render;
+
+import java.awt.BasicStroke;
+import java.awt.Color;
+import java.awt.Font;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// 繪圖資源快取(flyweight)，相同樣式的 stroke、字型只建立一次，填色共用一個常數
+// 只在 EDT 上使用，不做同步
+public final class RenderCache {
+    public static final String LABEL_FONT_NAME = "Arial";
+    public static final Color SHAPE_FILL = new Color(198, 198, 198); // basic物件的填色
+
+    private static final int SMALL_FONT_LIMIT = 128;
+    private static final Font[] smallFonts = new Font[SMALL_FONT_LIMIT];
+    private static final Map<Integer, Font> largeFonts = new HashMap<>();
+    private static final List<BasicStroke> strokes = new ArrayList<>();
+
+    private RenderCache() {
+    }
+
+    // 圓角線帽和連接點的 stroke，連線和預覽線都使用這種樣式
+    public static BasicStroke getStroke(float width) {
+        for (int i = 0; i < strokes.size(); i++) {
+            BasicStroke stroke = strokes.get(i);
+            if (stroke.getLineWidth() == width) {
+                return stroke;
+            }
+        }
+        BasicStroke stroke = new BasicStroke(width, BasicStroke.CAP_ROUND, BasicStroke.JOIN_ROUND);
+        strokes.add(stroke);
+        return stroke;
+    }
+
+    public static Font getLabelFont(int size) { // label使用的字型
+        if (size >= 0 && size < SMALL_FONT_LIMIT) {
+            Font font = smallFonts[size];
+            if (font == null) {
+                font = new Font(LABEL_FONT_NAME, Font.PLAIN, size);
+                smallFonts[size] = font;
+            }
+            return font;
+        }
+        return largeFonts.computeIfAbsent(size, s -> new Font(LABEL_FONT_NAME, Font.PLAIN, s));
+    }
+}
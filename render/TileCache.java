@@ -0,0 +1,173 @@
+package render;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// 靜態圖層的分塊點陣快取，每塊 TILE_SIZE x TILE_SIZE
+// 重繪時直接貼上快取的圖塊，只有被 invalidate 的圖塊才重新繪製
+// 圖塊數量有上限，超過時依 LRU 淘汰
+public class TileCache {
+    public static final int TILE_SIZE = 256;
+
+    // 繪製某一塊區域的場景
+    public interface TileRenderer {
+        void renderTile(Graphics2D g, Rectangle area);
+    }
+
+    private final int maxTiles;
+    private final Map<TileKey, BufferedImage> tiles;
+    private final TileKey probe = new TileKey(0, 0); // 查詢和移除時重複使用的key，只有放進快取時才建立新的
+    private final ArrayDeque<BufferedImage> spare = new ArrayDeque<>(); // 被淘汰的圖塊，重複使用記憶體
+    private final Rectangle tileArea = new Rectangle();
+    private final Color background;
+    private double deviceScale = 1.0; // HiDPI 時圖塊以裝置解析度繪製
+
+    // @param maxTiles 最多快取的圖塊數
+    // @param background 圖塊底色
+    public TileCache(int maxTiles, Color background) {
+        this.maxTiles = maxTiles;
+        this.background = background;
+        this.tiles = new LinkedHashMap<TileKey, BufferedImage>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<TileKey, BufferedImage> eldest) {
+                if (size() > TileCache.this.maxTiles) {
+                    recycle(eldest.getValue());
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    // 把 clip 範圍內的圖塊畫到 g 上，缺少的圖塊用 renderer 繪製後放進快取
+    public void paint(Graphics2D g, Rectangle clip, TileRenderer renderer) {
+        double scale = g.getTransform().getScaleX();
+        if (scale != deviceScale) {
+            invalidateAll();
+            deviceScale = scale;
+        }
+        int firstCol = Math.floorDiv(clip.x, TILE_SIZE);
+        int lastCol = Math.floorDiv(clip.x + clip.width - 1, TILE_SIZE);
+        int firstRow = Math.floorDiv(clip.y, TILE_SIZE);
+        int lastRow = Math.floorDiv(clip.y + clip.height - 1, TILE_SIZE);
+        for (int row = firstRow; row <= lastRow; row++) {
+            for (int col = firstCol; col <= lastCol; col++) {
+                BufferedImage tile = tiles.get(probe.set(col, row));
+                if (tile == null) {
+                    tile = renderTile(col, row, renderer);
+                    tiles.put(new TileKey(col, row), tile);
+                }
+                g.drawImage(tile, col * TILE_SIZE, row * TILE_SIZE, TILE_SIZE, TILE_SIZE, null);
+            }
+        }
+    }
+
+    // 丟掉和 area 有交集的圖塊，拖曳時每個畫面都可能呼叫，不配置物件
+    public void invalidate(Rectangle area) {
+        if (area == null || area.isEmpty() || tiles.isEmpty()) {
+            return;
+        }
+        int firstCol = Math.floorDiv(area.x, TILE_SIZE);
+        int lastCol = Math.floorDiv(area.x + area.width, TILE_SIZE);
+        int firstRow = Math.floorDiv(area.y, TILE_SIZE);
+        int lastRow = Math.floorDiv(area.y + area.height, TILE_SIZE);
+        if ((long) (lastCol - firstCol + 1) * (lastRow - firstRow + 1) > tiles.size()) {
+            // 範圍比快取大時直接掃描快取
+            Iterator<Map.Entry<TileKey, BufferedImage>> it = tiles.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<TileKey, BufferedImage> entry = it.next();
+                int col = entry.getKey().col;
+                int row = entry.getKey().row;
+                if (col >= firstCol && col <= lastCol && row >= firstRow && row <= lastRow) {
+                    recycle(entry.getValue());
+                    it.remove();
+                }
+            }
+            return;
+        }
+        for (int row = firstRow; row <= lastRow; row++) {
+            for (int col = firstCol; col <= lastCol; col++) {
+                BufferedImage tile = tiles.remove(probe.set(col, row));
+                if (tile != null) {
+                    recycle(tile);
+                }
+            }
+        }
+    }
+
+    public void invalidateAll() { // 丟掉所有圖塊
+        for (BufferedImage tile : tiles.values()) {
+            recycle(tile);
+        }
+        tiles.clear();
+    }
+
+    public int size() { // 目前快取的圖塊數
+        return tiles.size();
+    }
+
+    private BufferedImage renderTile(int col, int row, TileRenderer renderer) {
+        int pixels = (int) Math.ceil(TILE_SIZE * deviceScale);
+        BufferedImage tile = spare.poll();
+        if (tile == null || tile.getWidth() != pixels) {
+            tile = new BufferedImage(pixels, pixels, BufferedImage.TYPE_INT_RGB);
+        }
+        Graphics2D g = tile.createGraphics();
+        try {
+            g.setColor(background);
+            g.fillRect(0, 0, pixels, pixels);
+            g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+            g.scale(deviceScale, deviceScale);
+            g.translate(-col * TILE_SIZE, -row * TILE_SIZE);
+            tileArea.setBounds(col * TILE_SIZE, row * TILE_SIZE, TILE_SIZE, TILE_SIZE);
+            g.clip(tileArea);
+            renderer.renderTile(g, tileArea);
+        } finally {
+            g.dispose();
+        }
+        return tile;
+    }
+
+    private void recycle(BufferedImage tile) {
+        if (spare.size() < maxTiles / 4) {
+            spare.push(tile);
+        }
+    }
+
+    // 圖塊的位置，用 int 欄位當 key，查詢時改寫同一個 probe，不需要像 Long 一樣每次裝箱
+    private static final class TileKey {
+        private int col, row;
+
+        TileKey(int col, int row) {
+            this.col = col;
+            this.row = row;
+        }
+
+        TileKey set(int col, int row) {
+            this.col = col;
+            this.row = row;
+            return this;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof TileKey)) {
+                return false;
+            }
+            TileKey other = (TileKey) o;
+            return col == other.col && row == other.row;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * col + row;
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package render;
+
+import java.awt.Rectangle;
+
+// 畫布的視窗轉換：世界座標 x scale 為 view 座標，view 座標減去 origin 為螢幕座標
+// 平移只改變 origin，縮放才會改變 view 座標(圖塊快取以 view 座標切塊)
+public class Viewport {
+    public static final double MIN_SCALE = 0.05;
+    public static final double MAX_SCALE = 8.0;
+
+    private double scale = 1.0;
+    private int originX = 0; // 螢幕左上角對應的 view 座標
+    private int originY = 0;
+
+    public double getScale() {
+        return scale;
+    }
+
+    public int getOriginX() {
+        return originX;
+    }
+
+    public int getOriginY() {
+        return originY;
+    }
+
+    public int toWorldX(int screenX) { // 螢幕座標轉世界座標
+        return (int) Math.floor((screenX + originX) / scale);
+    }
+
+    public int toWorldY(int screenY) {
+        return (int) Math.floor((screenY + originY) / scale);
+    }
+
+    // 世界座標範圍轉 view 座標，向外取整確保完整涵蓋
+    // 結果寫進 view 並回傳，不建立新的矩形(view 可以和 world 是同一個)
+    public Rectangle worldToView(Rectangle world, Rectangle view) {
+        int x1 = (int) Math.floor(world.x * scale);
+        int y1 = (int) Math.floor(world.y * scale);
+        int x2 = (int) Math.ceil((world.x + world.width) * scale);
+        int y2 = (int) Math.ceil((world.y + world.height) * scale);
+        view.setBounds(x1, y1, x2 - x1 + 1, y2 - y1 + 1);
+        return view;
+    }
+
+    public Rectangle viewToWorld(Rectangle view) { // view 座標範圍轉世界座標
+        int x1 = (int) Math.floor(view.x / scale);
+        int y1 = (int) Math.floor(view.y / scale);
+        int x2 = (int) Math.ceil((view.x + view.width) / scale);
+        int y2 = (int) Math.ceil((view.y + view.height) / scale);
+        return new Rectangle(x1, y1, x2 - x1, y2 - y1);
+    }
+
+    // 世界座標範圍轉螢幕座標，結果寫進 screen 並回傳
+    public Rectangle worldToScreen(Rectangle world, Rectangle screen) {
+        worldToView(world, screen);
+        screen.translate(-originX, -originY);
+        return screen;
+    }
+
+    public Rectangle screenToView(Rectangle screen) {
+        return new Rectangle(screen.x + originX, screen.y + originY, screen.width, screen.height);
+    }
+
+    public void pan(int dx, int dy) { // 畫面內容往 (dx, dy) 方向移動
+        originX -= dx;
+        originY -= dy;
+    }
+
+    // 以螢幕上的 (screenX, screenY) 為中心縮放，該點下的世界座標保持不動
+    // @return 比例是否有改變
+    public boolean zoomAt(int screenX, int screenY, double factor) {
+        double newScale = Math.max(MIN_SCALE, Math.min(MAX_SCALE, scale * factor));
+        if (newScale == scale) {
+            return false;
+        }
+        double worldX = (screenX + originX) / scale;
+        double worldY = (screenY + originY) / scale;
+        scale = newScale;
+        originX = (int) Math.round(worldX * scale - screenX);
+        originY = (int) Math.round(worldY * scale - screenY);
+        return true;
+    }
+}
@@ -2,22 +2,91 @@ package shape;
 
 import java.awt.Color;
 import java.awt.Graphics;
-import java.awt.Point;
+import java.awt.Rectangle;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 
+import render.LevelOfDetail;
+import render.RenderCache;
+import util.LinkedPortSet;
+
 // Composite抽象類別，用Composition pattern
+// 子樹的邊界快取在每一層composite上，形成一個 bounding volume hierarchy
+// 繪圖、點擊和框選都先測試composite的邊界，沒交集就略過整個子樹
+// 子物件移動時只把祖先標記為 dirty，等下一次讀取邊界時才重新計算
+// 整個group移動時只記錄位移(offset)，繪圖和查詢時套用到子物件，放開滑鼠時才寫回子物件
 public abstract class CompositeShape extends Shape {
     private List<Shape> children;
+    private final List<Shape> childrenView; // 唯讀view，走訪時不複製
+    private final Rectangle paintBounds = new Rectangle(); // 所有子物件(含label)的重繪範圍
+    private final Rectangle childPaintBounds = new Rectangle(); // 計算 paintBounds 時重複使用
+    private boolean boundsDirty = true;
+    private int offsetX = 0, offsetY = 0; // 還沒寫回子物件的位移
 
     public CompositeShape(List<Shape> children) {
         super(0, 0, 0, 0);
         this.children = new ArrayList<>(children);
-        updateBounds();
+        this.childrenView = Collections.unmodifiableList(this.children);
+        for (Shape child : this.children) {
+            child.setParent(this);
+        }
+    }
+
+    // 子物件的位置、大小或label改變，祖先已經是 dirty 時就不必再往上傳
+    void markBoundsDirty() {
+        if (!boundsDirty) {
+            boundsDirty = true;
+            geometryChanged();
+        }
+    }
+
+    public int getOffsetX() {
+        return offsetX;
+    }
+
+    public int getOffsetY() {
+        return offsetY;
+    }
+
+    // 移動整個group，O(1)：只累積位移並平移快取的邊界
+    @Override
+    public void translate(int dx, int dy) {
+        offsetX += dx;
+        offsetY += dy;
+        if (!boundsDirty) {
+            x += dx;
+            y += dy;
+            paintBounds.translate(dx, dy);
+        }
+        geometryChanged();
+    }
+
+    // 把位移寫回所有子物件(巢狀group一路往下)，實際座標不變
+    @Override
+    public void commitTranslation() {
+        if (offsetX == 0 && offsetY == 0) {
+            return;
+        }
+        int dx = offsetX;
+        int dy = offsetY;
+        offsetX = 0;
+        offsetY = 0;
+        for (Shape child : children) {
+            child.translate(dx, dy);
+            child.commitTranslation();
+        }
     }
 
-    public void updateBounds() { // 更新composite shape的邊界
+    private void ensureBounds() {
+        if (boundsDirty) {
+            updateBounds();
+        }
+    }
+
+    private void updateBounds() { // 重新計算composite shape的邊界
         if (children.isEmpty()) {
+            boundsDirty = false;
             return;
         }
 
@@ -36,111 +105,173 @@ public abstract class CompositeShape extends Shape {
             maxY = Math.max(maxY, child.getY() + child.getHeight());
         }
 
-        // 設置緊貼的邊界，沒有額外的padding
-        this.x = minX;
-        this.y = minY;
+        // 設置緊貼的邊界，沒有額外的padding，子物件座標加上尚未寫回的位移
+        this.x = minX + offsetX;
+        this.y = minY + offsetY;
         this.width = maxX - minX;
         this.height = maxY - minY;
+        boundsDirty = false;
+        invalidatePorts();
+
+        super.getRepaintBounds(paintBounds);
+        for (Shape child : children) {
+            child.getRepaintBounds(childPaintBounds);
+            childPaintBounds.translate(offsetX, offsetY);
+            paintBounds.add(childPaintBounds);
+        }
+    }
+
+    @Override
+    public int getX() {
+        ensureBounds();
+        return x;
+    }
+
+    @Override
+    public int getY() {
+        ensureBounds();
+        return y;
+    }
+
+    @Override
+    public int getWidth() {
+        ensureBounds();
+        return width;
     }
 
     @Override
-    public void draw(Graphics g, boolean showPorts, List<Point> alwaysShowPorts) {
-        // 繪製所有子物件
-        for (Shape child : getChildren()) {
+    public int getHeight() {
+        ensureBounds();
+        return height;
+    }
+
+    @Override
+    public boolean contains(int px, int py) {
+        ensureBounds();
+        return super.contains(px, py);
+    }
+
+    @Override
+    public void getRepaintBounds(Rectangle bounds) { // 子物件的label可能超出group的邊界
+        ensureBounds();
+        if (children.isEmpty()) {
+            super.getRepaintBounds(bounds);
+        } else {
+            bounds.setBounds(paintBounds);
+        }
+    }
+
+    @Override
+    public boolean hitsClip(Graphics g) {
+        ensureBounds();
+        return g.hitClip(paintBounds.x, paintBounds.y, paintBounds.width, paintBounds.height);
+    }
+
+    @Override
+    public boolean containsLeaf(int px, int py) { // 先測邊界，落在邊界外時不走訪子物件
+        if (!contains(px, py)) {
+            return false;
+        }
+        for (Shape child : children) {
+            if (child.containsLeaf(px - offsetX, py - offsetY)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public void draw(Graphics g, boolean showPorts, LinkedPortSet linkedPorts, LevelOfDetail lod) {
+        ensureBounds();
+        // 畫面上太小時只畫外框方塊，不走訪子物件
+        if (lod.drawAsBox(width, height)) {
+            g.setColor(RenderCache.SHAPE_FILL);
+            g.fillRect(x, y, width, height);
+            g.setColor(Color.BLACK);
+            g.drawRect(x, y, width, height);
+            return;
+        }
+
+        // 繪製和clip有交集的子物件，子group整個在clip外時直接略過
+        // 子物件座標還沒加上位移，畫之前平移座標系
+        g.translate(offsetX, offsetY);
+        for (Shape child : children) {
             // 選中group物件時，子物件也顯示port
-            child.draw(g, showPorts, alwaysShowPorts);
+            if (child.hitsClip(g)) {
+                child.draw(g, showPorts, linkedPorts, lod);
+            }
         }
+        g.translate(-offsetX, -offsetY);
 
         // 繪製group物件自己的port
-        if (showPorts) {
+        if (showPorts && lod.showPorts()) {
             g.setColor(Color.BLACK);
-            for (Point p : getConnectionPorts()) {
-                if (alwaysShowPorts.contains(p)) {
-                    g.fillRect(p.x - 5, p.y - 5, 10, 10);
+            int tx = getTranslationX();
+            int ty = getTranslationY();
+            for (int i = 0; i < getPortCount(); i++) {
+                int px = getPortX(i);
+                int py = getPortY(i);
+                if (linkedPorts.contains(px + tx, py + ty)) {
+                    g.fillRect(px - 5, py - 5, 10, 10);
                 }
             }
         }
     }
 
     @Override
-    public List<Point> getConnectionPorts() {
-        List<Point> ports = new ArrayList<>();
-        ports.add(new Point(x + width / 2, y));          // 上中
-        ports.add(new Point(x + width, y + height / 2)); // 右中
-        ports.add(new Point(x + width / 2, y + height)); // 下中
-        ports.add(new Point(x, y + height / 2));         // 左中
-        return ports;
+    protected int getPortSlots() {
+        return 4;
+    }
+
+    @Override
+    protected void layoutPorts(int[] ports) {
+        ensureBounds();
+        setPort(ports, 0, x + width / 2, y);          // 上中
+        setPort(ports, 1, x + width, y + height / 2); // 右中
+        setPort(ports, 2, x + width / 2, y + height); // 下中
+        setPort(ports, 3, x, y + height / 2);         // 左中
     }
 
-    public List<Shape> getChildren() { // 取得所有子物件
-        return new ArrayList<>(children);
+    public List<Shape> getChildren() { // 取得所有子物件(唯讀，不複製)
+        return childrenView;
     }
 
     public void addChild(Shape child) { // 新增子物件
         children.add(child);
-        updateBounds();
+        child.setParent(this);
+        markBoundsDirty();
     }
 
     public void removeChild(Shape child) { // 移除子物件
-        children.remove(child);
-        updateBounds();
+        if (children.remove(child)) {
+            child.setParent(null);
+            markBoundsDirty();
+        }
     }
 
-    // 檢查是否包含特定物件（遞迴搜尋）
-    public boolean containsRecursively(Shape target) {
-        if (children.contains(target)) {
-            return true;
+    // 解散group，子物件變回沒有parent的shape
+    // @return 原本的子物件
+    public List<Shape> detachChildren() {
+        commitTranslation();
+        List<Shape> detached = new ArrayList<>(children);
+        for (Shape child : detached) {
+            child.setParent(null);
         }
+        children.clear();
+        markBoundsDirty();
+        return detached;
+    }
 
-        for (Shape child : children) {
-            // 直接使用多型檢查子形狀
-            ContainmentChecker checker = new ContainmentChecker(target);
-            child.accept(checker);
-            if (checker.containsTarget()) {
+    // 檢查是否包含特定物件(任何一層)，沿著 target 的parent往上走，O(深度)且不建立物件
+    public boolean containsRecursively(Shape target) {
+        for (CompositeShape p = target.getParent(); p != null; p = p.getParent()) {
+            if (p == this) {
                 return true;
             }
         }
-
         return false;
     }
 
-    // 包含檢查器供內部使用
-    private static class ContainmentChecker implements ShapeHandler {
-        private final Shape target;
-        private boolean contains = false;
-        
-        public ContainmentChecker(Shape target) {
-            this.target = target;
-        }
-        
-        @Override
-        public void handleBasicShape(Shape shape) {
-            // basic shape,不包含其他形狀
-            contains = false;
-        }
-        
-        @Override
-        public void handleCompositeShape(CompositeShape composite) {
-            // 遞迴檢查
-            contains = composite.children.contains(target);
-            if (!contains) {
-                // 檢查子shape的子shape
-                for (Shape child : composite.children) {
-                    ContainmentChecker childChecker = new ContainmentChecker(target);
-                    child.accept(childChecker);
-                    if (childChecker.containsTarget()) {
-                        contains = true;
-                        break;
-                    }
-                }
-            }
-        }
-        
-        public boolean containsTarget() {
-            return contains;
-        }
-    }
-
     @Override
     public void accept(ShapeHandler handler) { // override Shape的 accept 方法，以多型方式處理Composite shape
         handler.handleCompositeShape(this);
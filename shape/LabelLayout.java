@@ -0,0 +1,83 @@
+package shape;
+
+import java.awt.FontMetrics;
+import java.awt.Graphics;
+import java.util.ArrayList;
+import java.util.List;
+
+// label文字排版結果的快取，座標都是相對於shape中心點
+// 超過寬度的文字以空白斷行，單行時和原本的置中方式相同
+class LabelLayout {
+    private final String[] lines;
+    private final int[] offsetX; // 每一行相對中心的起點
+    private final int[] offsetY; // 每一行相對中心的 baseline
+    private final int left, top, right, bottom; // 文字範圍(相對中心)
+
+    private LabelLayout(String[] lines, int[] offsetX, int[] offsetY, int left, int top, int right, int bottom) {
+        this.lines = lines;
+        this.offsetX = offsetX;
+        this.offsetY = offsetY;
+        this.left = left;
+        this.top = top;
+        this.right = right;
+        this.bottom = bottom;
+    }
+
+    // 依字型量測並排版
+    // @param maxWidth 每一行的最大寬度，單字本身超過時不會被切開
+    static LabelLayout layout(String text, FontMetrics fm, int maxWidth) {
+        List<String> wrapped = wrap(text, fm, maxWidth);
+        int count = wrapped.size();
+        String[] lines = wrapped.toArray(new String[0]);
+        int[] offsetX = new int[count];
+        int[] offsetY = new int[count];
+        int lineHeight = fm.getHeight();
+        int left = 0, right = 0;
+        for (int i = 0; i < count; i++) {
+            int lineWidth = fm.stringWidth(lines[i]);
+            offsetX[i] = -lineWidth / 2;
+            // 第 i 行以整段文字的中心對齊，單行時為 textHeight / 4
+            offsetY[i] = lineHeight / 4 + (int) Math.round((i - (count - 1) / 2.0) * lineHeight);
+            left = Math.min(left, offsetX[i]);
+            right = Math.max(right, offsetX[i] + lineWidth);
+        }
+        int top = offsetY[0] - fm.getAscent();
+        int bottom = offsetY[count - 1] + fm.getDescent();
+        return new LabelLayout(lines, offsetX, offsetY, left, top, right, bottom);
+    }
+
+    private static List<String> wrap(String text, FontMetrics fm, int maxWidth) {
+        List<String> result = new ArrayList<>();
+        for (String paragraph : text.split("\n", -1)) {
+            if (maxWidth <= 0 || fm.stringWidth(paragraph) <= maxWidth) {
+                result.add(paragraph);
+                continue;
+            }
+            StringBuilder line = new StringBuilder();
+            for (String word : paragraph.split(" ")) {
+                if (line.length() == 0) {
+                    line.append(word);
+                } else if (fm.stringWidth(line + " " + word) <= maxWidth) {
+                    line.append(' ').append(word);
+                } else {
+                    result.add(line.toString());
+                    line.setLength(0);
+                    line.append(word);
+                }
+            }
+            result.add(line.toString());
+        }
+        return result;
+    }
+
+    void draw(Graphics g, int cx, int cy) { // 以 (cx, cy) 為中心繪製
+        for (int i = 0; i < lines.length; i++) {
+            g.drawString(lines[i], cx + offsetX[i], cy + offsetY[i]);
+        }
+    }
+
+    int getLeft() { return left; }
+    int getTop() { return top; }
+    int getRight() { return right; }
+    int getBottom() { return bottom; }
+}
@@ -1,21 +1,40 @@
 package shape;
 
 import java.awt.Color;
+import java.awt.Font;
 import java.awt.Graphics;
 import java.awt.Point;
+import java.awt.Rectangle;
 import java.util.ArrayList;
 import java.util.List;
 
+import render.LevelOfDetail;
+import render.RenderCache;
+import util.LinkedPortSet;
+
 // Shape抽象類別，所有圖形的基底class
 public abstract class Shape implements Cloneable {
+    private static final int PORT_MARGIN = 6; // port方塊超出邊界的範圍(含線寬)
+    private static final int LABEL_WIDTH = 60;
+    private static final int LABEL_HEIGHT = 30;
+    private static final int LABEL_PADDING = 5; // 文字換行時左右保留的空間
+
     protected int x, y, width, height;
     
     protected int depth = 0; // 0~99 越大越上層
 
+    // port座標快取 {x0, y0, x1, y1, ...}，只有位置或大小改變時才重新計算
+    private int[] portCache = null;
+    private boolean portsDirty = true;
+
     protected String labelText = null;
     protected String labelShape = "rect";
     protected Color labelColor = Color.WHITE;
     protected int labelFontSize = 12;
+    private LabelLayout labelLayout = null; // label排版快取，null 表示需要重新計算
+
+    private CompositeShape parent = null; // 所屬的group，最上層shape為 null
+    private int handle = -1; // model中的索引(穩定的 int id)，-1 表示不在model中
 
     public Shape(int x, int y, int width, int height) {
         this.x = x;
@@ -30,6 +49,7 @@ public abstract class Shape implements Cloneable {
 
     public void setX(int x) {
         this.x = x;
+        geometryChanged();
     }
 
     public int getY() {
@@ -38,6 +58,7 @@ public abstract class Shape implements Cloneable {
 
     public void setY(int y) {
         this.y = y;
+        geometryChanged();
     }
 
     public int getWidth() {
@@ -46,6 +67,8 @@ public abstract class Shape implements Cloneable {
 
     public void setWidth(int width) {
         this.width = width;
+        geometryChanged();
+        labelLayout = null;
     }
 
     public int getHeight() {
@@ -54,6 +77,8 @@ public abstract class Shape implements Cloneable {
 
     public void setHeight(int height) {
         this.height = height;
+        geometryChanged();
+        labelLayout = null;
     }
 
     public int getDepth() {
@@ -73,22 +98,234 @@ public abstract class Shape implements Cloneable {
     // 繪製形狀
     // @param g 繪圖環境
     // @param showPorts 是否顯示port
-    // @param alwaysShowPorts 總是顯示的port清單
-    public abstract void draw(Graphics g, boolean showPorts, List<Point> alwaysShowPorts);
+    // @param linkedPorts 已連線的port，總是顯示
+    // @param lod 細節程度，縮小時略過port和label
+    public abstract void draw(Graphics g, boolean showPorts, LinkedPortSet linkedPorts, LevelOfDetail lod);
+
+    public void draw(Graphics g, boolean showPorts, LinkedPortSet linkedPorts) { // 畫出所有細節
+        draw(g, showPorts, linkedPorts, LevelOfDetail.FULL);
+    }
+
+    // 繪製port：被選中時全部顯示，否則只顯示已連線的port(太小時整個略過)
+    // 已連線的port以實際座標登記，group還在移動中時要加上祖先的位移
+    protected void drawPorts(Graphics g, boolean showPorts, LinkedPortSet linkedPorts, LevelOfDetail lod) {
+        if (!lod.showPorts()) {
+            return;
+        }
+        int tx = getTranslationX();
+        int ty = getTranslationY();
+        for (int i = 0; i < getPortCount(); i++) {
+            int px = getPortX(i);
+            int py = getPortY(i);
+            if (showPorts || linkedPorts.contains(px + tx, py + ty)) {
+                g.fillRect(px - 5, py - 5, 10, 10);
+            }
+        }
+    }
+
+    protected boolean isLabelVisible(LevelOfDetail lod) { // 有label且字體在畫面上夠大
+        return hasLabel() && lod.showLabel(labelFontSize);
+    }
 
     public boolean contains(int px, int py) { // 檢查點是否在Shape內
         return px >= x && px <= x + width && py >= y && py <= y + height;
     }
 
-    public List<Point> getConnectionPorts() { // 取得形狀的port清單
-        return new ArrayList<>();
+    public boolean containsLeaf(int px, int py) { // 點是否落在某個basic shape內(composite會往下找)
+        return contains(px, py);
+    }
+
+    // 重繪範圍是否和目前的clip有交集，不需要時不建立 Rectangle
+    public boolean hitsClip(Graphics g) {
+        if (!hasLabel()) {
+            return g.hitClip(x - PORT_MARGIN, y - PORT_MARGIN, width + 2 * PORT_MARGIN, height + 2 * PORT_MARGIN);
+        }
+        Rectangle r = getRepaintBounds();
+        return g.hitClip(r.x, r.y, r.width, r.height);
+    }
+
+    public List<Point> getConnectionPorts() { // 取得形狀的port清單(會建立新物件，熱路徑請用 getPortX/getPortY)
+        List<Point> ports = new ArrayList<>();
+        for (int i = 0; i < getPortCount(); i++) {
+            ports.add(new Point(getPortX(i), getPortY(i)));
+        }
+        return ports;
+    }
+
+    // 不建立物件的port存取
+    public int getPortCount() {
+        return ports().length / 2;
+    }
+
+    public int getPortX(int index) {
+        return ports()[index * 2];
+    }
+
+    public int getPortY(int index) {
+        return ports()[index * 2 + 1];
+    }
+
+    // 子類別的port數量
+    protected int getPortSlots() {
+        return 0;
+    }
+
+    // 子類別把port座標依序填入 ports
+    protected void layoutPorts(int[] ports) {
+    }
+
+    protected static void setPort(int[] ports, int index, int px, int py) {
+        ports[index * 2] = px;
+        ports[index * 2 + 1] = py;
+    }
+
+    // 位置或大小改變時呼叫，下次存取port時重新計算
+    protected void invalidatePorts() {
+        portsDirty = true;
+    }
+
+    // 位置或大小改變：port重新計算，所屬group的邊界標記為需要重新計算
+    protected void geometryChanged() {
+        invalidatePorts();
+        if (parent != null) {
+            parent.markBoundsDirty();
+        }
+    }
+
+    private void labelChanged() { // label會影響group的重繪範圍
+        labelLayout = null;
+        if (parent != null) {
+            parent.markBoundsDirty();
+        }
+    }
+
+    // 移動shape，composite會覆寫成只記錄位移
+    public void translate(int dx, int dy) {
+        x += dx;
+        y += dy;
+        geometryChanged();
+    }
+
+    // 把尚未寫回的位移寫回子物件，basic shape不需要
+    public void commitTranslation() {
+    }
+
+    // 所有祖先group尚未寫回子物件的位移，加上自己的座標就是實際座標
+    public int getTranslationX() {
+        int tx = 0;
+        for (CompositeShape p = parent; p != null; p = p.getParent()) {
+            tx += p.getOffsetX();
+        }
+        return tx;
+    }
+
+    public int getTranslationY() {
+        int ty = 0;
+        for (CompositeShape p = parent; p != null; p = p.getParent()) {
+            ty += p.getOffsetY();
+        }
+        return ty;
+    }
+
+    public int getHandle() {
+        return handle;
+    }
+
+    public void setHandle(int handle) { // 只由model的儲存結構設定
+        this.handle = handle;
+    }
+
+    public CompositeShape getParent() { // 所屬的group
+        return parent;
+    }
+
+    void setParent(CompositeShape parent) { // 只由 CompositeShape 維護
+        this.parent = parent;
+    }
+
+    public Shape getRoot() { // 最外層的group，不屬於任何group時為自己
+        Shape root = this;
+        while (root.parent != null) {
+            root = root.parent;
+        }
+        return root;
+    }
+
+    private int[] ports() {
+        if (portsDirty) {
+            if (portCache == null || portCache.length != getPortSlots() * 2) {
+                portCache = new int[getPortSlots() * 2];
+            }
+            layoutPorts(portCache);
+            portsDirty = false;
+        }
+        return portCache;
+    }
+
+    // 重繪時需要涵蓋的範圍，包含port方塊和label
+    public Rectangle getRepaintBounds() {
+        Rectangle bounds = new Rectangle();
+        getRepaintBounds(bounds);
+        return bounds;
+    }
+
+    // 把重繪範圍寫進 bounds，拖曳時重複使用同一個矩形
+    public void getRepaintBounds(Rectangle bounds) {
+        bounds.setBounds(getX() - PORT_MARGIN, getY() - PORT_MARGIN,
+                getWidth() + 2 * PORT_MARGIN, getHeight() + 2 * PORT_MARGIN);
+        if (hasLabel()) {
+            int cx = getX() + getWidth() / 2;
+            int cy = getY() + getHeight() / 2;
+            addArea(bounds, cx - LABEL_WIDTH / 2 - 1, cy - LABEL_HEIGHT / 2 - 1, LABEL_WIDTH + 2, LABEL_HEIGHT + 2);
+            if (labelLayout != null) {
+                addArea(bounds, cx + labelLayout.getLeft() - 1, cy + labelLayout.getTop() - 1,
+                        labelLayout.getRight() - labelLayout.getLeft() + 2, labelLayout.getBottom() - labelLayout.getTop() + 2);
+            } else {
+                // 還沒有排版過，用字體大小保守估計(每個字最多一行)
+                int textW = labelText.length() * labelFontSize;
+                int textH = (labelText.split(" ").length + 1) * labelFontSize * 2;
+                addArea(bounds, cx - textW / 2 - 1, cy - textH / 2 - 1, textW + 2, textH + 2);
+            }
+        }
+    }
+
+    private static void addArea(Rectangle bounds, int x, int y, int w, int h) { // 和 bounds.add(new Rectangle(x, y, w, h)) 相同
+        bounds.add(x, y);
+        bounds.add(x + w, y + h);
+    }
+
+    // 繪製label，文字排版結果會快取到文字、字體大小或shape大小改變為止
+    protected void drawLabel(Graphics g) {
+        int cx = x + width / 2;
+        int cy = y + height / 2;
+        int labelX = cx - LABEL_WIDTH / 2;
+        int labelY = cy - LABEL_HEIGHT / 2;
+
+        g.setColor(labelColor);
+        if ("oval".equalsIgnoreCase(labelShape)) {
+            g.fillOval(labelX, labelY, LABEL_WIDTH, LABEL_HEIGHT);
+            g.setColor(Color.BLACK);
+            g.drawOval(labelX, labelY, LABEL_WIDTH, LABEL_HEIGHT);
+        } else {
+            g.fillRect(labelX, labelY, LABEL_WIDTH, LABEL_HEIGHT);
+            g.setColor(Color.BLACK);
+            g.drawRect(labelX, labelY, LABEL_WIDTH, LABEL_HEIGHT);
+        }
+
+        g.setColor(Color.BLACK);
+        Font font = RenderCache.getLabelFont(labelFontSize);
+        g.setFont(font);
+        if (labelLayout == null) {
+            labelLayout = LabelLayout.layout(labelText, g.getFontMetrics(font), width - 2 * LABEL_PADDING);
+        }
+        labelLayout.draw(g, cx, cy);
     }
 
     // label相關方法
-    public void setLabelText(String text) { this.labelText = text; }
+    public void setLabelText(String text) { this.labelText = text; labelChanged(); }
     public void setLabelShape(String shape) { this.labelShape = shape; }
     public void setLabelColor(Color color) { this.labelColor = color; }
-    public void setLabelFontSize(int size) { this.labelFontSize = size; }
+    public void setLabelFontSize(int size) { this.labelFontSize = size; labelChanged(); }
 
     public String getLabelText() { return labelText; }
     public String getLabelShape() { return labelShape; }
@@ -100,7 +337,12 @@ public abstract class Shape implements Cloneable {
     @Override
     public Shape clone() {
         try {
-            return (Shape) super.clone();
+            Shape copy = (Shape) super.clone();
+            copy.portCache = null; // 不共用port快取
+            copy.portsDirty = true;
+            copy.parent = null;
+            copy.handle = -1;
+            return copy;
         } catch (CloneNotSupportedException e) {
             throw new RuntimeException("Clone not supported", e);
         }
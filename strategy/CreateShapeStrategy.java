@@ -1,5 +1,6 @@
 package strategy;
 
+import java.awt.Rectangle;
 import java.awt.event.MouseEvent;
 
 import model.WorkflowModel;
@@ -11,7 +12,7 @@ public class CreateShapeStrategy implements ToolStrategy {
     // 需要委派給CanvasPanel的操作
     public interface CreateShapeDelegate {
         WorkflowModel getModel();
-        void repaint();
+        void repaintWorld(Rectangle area); // 重繪世界座標範圍
     }
     
     private final CreateShapeDelegate delegate;
@@ -34,14 +35,10 @@ public class CreateShapeStrategy implements ToolStrategy {
             WorkflowModel model = delegate.getModel(); // CanvasPanel 送過來的
             
             // 正確設置深度，確定新建的basic物件顯示在最上層
-            int maxDepth = model.getAllShapes().stream() // 因為是ArrayList，所以List去轉Stream做連環判斷
-                .mapToInt(Shape::getDepth)
-                .max()
-                .orElse(-1); // List是空的回傳 -1
-            newShape.setDepth(maxDepth + 1);
+            newShape.setDepth(model.allocateFrontDepth()); // 超出 0~99 時model會先重新編號
             
             model.addShape(newShape);
-            delegate.repaint(); // 確保重繪，有可能會因為View快速點擊的滑鼠事件就不理CanvasPanel裡面被Observer通知的repaint()了
+            delegate.repaintWorld(newShape.getRepaintBounds()); // 確保重繪，有可能會因為View快速點擊的滑鼠事件就不理CanvasPanel裡面被Observer通知的repaint()了
             return true;
         }
         
@@ -1,8 +1,10 @@
 package strategy;
 
 import java.awt.Point;
+import java.awt.Rectangle;
 import java.awt.event.MouseEvent;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 
 import link.LinkShape;
@@ -16,7 +18,7 @@ public class LinkToolStrategy implements ToolStrategy {
     // 需要委派給CanvasPanel的操作
     public interface LinkToolDelegate {
         WorkflowModel getModel();
-        void repaint();
+        void repaintWorld(Rectangle area); // 重繪世界座標範圍
     }
     
     private final LinkToolDelegate delegate;
@@ -24,8 +26,12 @@ public class LinkToolStrategy implements ToolStrategy {
     
     private Shape startShape;
     private Point startPort;
-    private List<Point> currentPath = new ArrayList<>();
+    private final List<Point> currentPath = new ArrayList<>();
+    private final List<Point> currentPathView = Collections.unmodifiableList(currentPath); // 繪圖用的唯讀view
     private boolean isDrawingLink = false;
+    // 拖曳時重複使用的預覽範圍，交給 repaintWorld 後會被複製，不會被保留
+    private final Rectangle previewDamage = new Rectangle();
+    private final Rectangle previewBounds = new Rectangle();
     
     // 創建連線工具策略
     // @param delegate 委派物件
@@ -57,7 +63,7 @@ public class LinkToolStrategy implements ToolStrategy {
                 currentPath.add(startPort); 
                 currentPath.add(new Point(e.getX(), e.getY()));
                 isDrawingLink = true;
-                delegate.repaint();
+                delegate.repaintWorld(previewBounds(previewBounds));
                 return true;
             }
         }
@@ -68,8 +74,10 @@ public class LinkToolStrategy implements ToolStrategy {
     @Override
     public boolean handleMouseDragged(MouseEvent e) {
         if (isDrawingLink && currentPath.size() == 2) {
-            currentPath.set(1, new Point(e.getX(), e.getY())); // 確保終點的index為1
-            delegate.repaint();
+            previewBounds(previewDamage); // 舊的預覽線也要清掉
+            currentPath.get(1).setLocation(e.getX(), e.getY()); // 確保終點的index為1，直接更新終點
+            previewDamage.add(previewBounds(previewBounds));
+            delegate.repaintWorld(previewDamage);
             return true;
         }
         
@@ -80,6 +88,7 @@ public class LinkToolStrategy implements ToolStrategy {
     public boolean handleMouseReleased(MouseEvent e) {
         if (isDrawingLink && startShape != null && startPort != null) {
             WorkflowModel model = delegate.getModel();
+            Rectangle damage = previewBounds(new Rectangle());
             
             // 使用 getClosestTopPort，它會確保只返回最上層形狀的連接port
             PortResult close = model.getClosestTopPort(e.getX(), e.getY(), 15); // threshold 簡單設置能連線的長度
@@ -105,18 +114,29 @@ public class LinkToolStrategy implements ToolStrategy {
             startPort = null;
             currentPath.clear();
             isDrawingLink = false;
-            delegate.repaint();
+            delegate.repaintWorld(damage);
             return true;
         }
         
         return false;
     }
 
+    // 預覽連線(含箭頭)的範圍，寫入 bounds 並回傳
+    private Rectangle previewBounds(Rectangle bounds) {
+        Point first = currentPath.get(0);
+        bounds.setBounds(first.x, first.y, 0, 0);
+        for (int i = 1; i < currentPath.size(); i++) {
+            bounds.add(currentPath.get(i));
+        }
+        bounds.grow(LinkShape.REPAINT_MARGIN, LinkShape.REPAINT_MARGIN);
+        return bounds;
+    }
+
     public boolean isDrawingLink() { // 檢查是否正在繪製連線
         return isDrawingLink;
     }
     
-    public List<Point> getCurrentPath() { // 取得當前路徑
-        return new ArrayList<>(currentPath);
+    public List<Point> getCurrentPath() { // 取得當前路徑(唯讀，不複製)
+        return currentPathView;
     }
 }
\ No newline at end of file
@@ -6,6 +6,7 @@ import java.awt.event.MouseEvent;
 import java.util.ArrayList;
 import java.util.List;
 
+import link.LinkShape;
 import model.WorkflowModel;
 import shape.CompositeShape;
 import shape.Shape;
@@ -17,16 +18,23 @@ public class SelectToolStrategy implements ToolStrategy {
     public interface SelectToolDelegate {
         WorkflowModel getModel();
         void updateEditMenuForSelection(List<Shape> selectedShapes);
-        void repaint();
+        void beginDragOverlay(Shape shape); // 拖曳開始，凍結其他物件
+        void endDragOverlay(); // 拖曳結束，合併回場景
     }
     
     private final SelectToolDelegate delegate;
     
     private boolean dragging = false;
-    private Point dragStartPoint = null;
+    private boolean overlayActive = false; // 第一次拖曳移動時才建立浮動圖層
+    private boolean selecting = false;
+    // 拖曳和框選用的座標重複使用，拖曳過程不需要配置物件
+    private final Point dragStartPoint = new Point();
+    private final Point selectionStart = new Point();
+    private final Point selectionEnd = new Point();
+    private final MoveHandler moveHandler = new MoveHandler();
+    private final List<Shape> pressedSelection = new ArrayList<>(1); // 按下時選取的單一shape
     private Shape draggingShape = null;
-    private Point selectionStart = null;
-    private Point selectionEnd = null;
+    private final List<LinkShape> draggedLinks = new ArrayList<>(); // 拖曳開始時收集一次被拖曳物件上的連線
     
     private int initialX, initialY; // 拖曳開始時的物件位置
     
@@ -45,21 +53,21 @@ public class SelectToolStrategy implements ToolStrategy {
         
         if (shape != null) {
             // 直接使用返回的形狀，不需要找最上層的composite物件
-            List<Shape> selectedShapes = new ArrayList<>();
-            selectedShapes.add(shape);
-            model.setSelectedShapes(selectedShapes);
-            delegate.updateEditMenuForSelection(selectedShapes);
+            pressedSelection.clear();
+            pressedSelection.add(shape);
+            model.setSelectedShapes(pressedSelection);
+            delegate.updateEditMenuForSelection(pressedSelection);
             
             dragging = true;
-            dragStartPoint = getPoint(e);
+            dragStartPoint.setLocation(e.getX(), e.getY());
             draggingShape = shape;
             initialX = shape.getX();
             initialY = shape.getY();
-            delegate.repaint();
         } else {
             // 開始選擇區域
-            selectionStart = getPoint(e);
-            selectionEnd = null;
+            selectionStart.setLocation(e.getX(), e.getY());
+            selectionEnd.setLocation(selectionStart);
+            selecting = true;
         }
         
         return true;
@@ -69,23 +77,35 @@ public class SelectToolStrategy implements ToolStrategy {
     public boolean handleMouseDragged(MouseEvent e) {
         WorkflowModel model = delegate.getModel();
         
-        if (dragging && dragStartPoint != null && draggingShape != null) {
+        if (dragging && draggingShape != null) {
             // 拖曳形狀
             int dx = e.getX() - dragStartPoint.x;
             int dy = e.getY() - dragStartPoint.y;
             
-            // 使用移動處理器
-            MoveHandler handler = new MoveHandler(dx, dy);
-            draggingShape.accept(handler);
+            if (!overlayActive) {
+                delegate.beginDragOverlay(draggingShape);
+                overlayActive = true;
+                draggedLinks.clear();
+                draggedLinks.addAll(model.getConnectedLinks(draggingShape));
+            }
+            
+            // 使用移動處理器，shape和連線的變更合併成一次通知
+            model.beginTransaction();
+            try {
+                moveHandler.setDelta(dx, dy);
+                draggingShape.accept(moveHandler);
+                
+                model.shapeModified(draggingShape); // 更新空間索引
+                model.updateLinks(draggedLinks); // 只更新被拖曳物件上的連線
+            } finally {
+                model.commitTransaction();
+            }
             
             // 更新拖曳起點
-            dragStartPoint = getPoint(e);
-            model.updateConnectedLinks();
-            delegate.repaint();
-        } else if (selectionStart != null) {
+            dragStartPoint.setLocation(e.getX(), e.getY());
+        } else if (selecting) {
             // 更新選擇區域
-            selectionEnd = getPoint(e);
-            delegate.repaint();
+            selectionEnd.setLocation(e.getX(), e.getY());
         }
         
         return true;
@@ -96,28 +116,31 @@ public class SelectToolStrategy implements ToolStrategy {
         WorkflowModel model = delegate.getModel();
         
         if (dragging && draggingShape != null) {
-            // 結束拖曳，將物件提到前面
+            // 結束拖曳，group的位移寫回子物件，將物件提到前面
+            model.commitMove(draggingShape);
             model.bringToFront(draggingShape);
+            if (overlayActive) {
+                delegate.endDragOverlay();
+                overlayActive = false;
+            }
             dragging = false;
             draggingShape = null;
-            dragStartPoint = null;
-            delegate.repaint();
-        } else if (selectionStart != null) {
+            draggedLinks.clear();
+        } else if (selecting) {
             // 處理選擇區域
-            selectionEnd = getPoint(e);
+            selectionEnd.setLocation(e.getX(), e.getY());
             processSelectionArea();
-            selectionStart = selectionEnd = null;
-            delegate.repaint();
+            selecting = false;
         }
         
         return true;
     }
     
-    // 形狀移動處理器
+    // 形狀移動處理器，每次拖曳只更新位移後重複使用
     private class MoveHandler implements ShapeHandler {
-        private final int dx, dy;
+        private int dx, dy;
         
-        public MoveHandler(int dx, int dy) {
+        void setDelta(int dx, int dy) {
             this.dx = dx;
             this.dy = dy;
         }
@@ -131,21 +154,13 @@ public class SelectToolStrategy implements ToolStrategy {
         
         @Override
         public void handleCompositeShape(CompositeShape group) {
-            // 移動所有子shape
-            for (Shape child : group.getChildren()) {
-                child.accept(this);
-            }
-            // 更新composite shape的邊界
-            group.updateBounds();
+            // 只記錄group的位移，不走訪子shape，放開滑鼠時才寫回
+            group.translate(dx, dy);
         }
     }
 
     // 處理選擇區域
     private void processSelectionArea() {
-        if (selectionStart == null || selectionEnd == null) {
-            return;
-        }
-        
         WorkflowModel model = delegate.getModel();
         
         Rectangle selectionRect = new Rectangle(
@@ -0,0 +1,192 @@
+import java.awt.Point;
+import java.awt.Rectangle;
+import java.awt.event.MouseEvent;
+import java.lang.management.ManagementFactory;
+import java.util.List;
+
+import link.LinkShape;
+import link.LinkType;
+import model.ModelChangeListener;
+import model.ModelChangeSet;
+import model.WorkflowModel;
+import shape.RectangleShape;
+import shape.Shape;
+import tool.ToolMode;
+
+// 拖曳配置檢查：經由 CanvasPanel 分派滑鼠事件，在同一次按下和放開之間送出 100k 個合成的拖曳事件
+// 選取工具拖曳接著連線的shape(更新端點、重新繞線、經過的連線也要重新繞線、重繪範圍)，
+// 連線工具的預覽線和建立形狀工具各量一次
+// 用 ThreadMXBean 計算拖曳期間這個執行緒配置的位元組，有配置就失敗(exit code 1)
+// 執行：java -Djava.awt.headless=true -cp <classes> DragAllocationCheck
+public class DragAllocationCheck {
+    private static final int WARMUP_EVENTS = 100_000; // 讓 JIT 編譯完拖曳路徑
+    private static final int MEASURED_EVENTS = 100_000;
+    private static final long ALLOWED_BYTES = 1024; // 量測本身的誤差
+
+    public static void main(String[] args) {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        if (!threads.isThreadAllocatedMemorySupported()) {
+            System.out.println("SKIP: thread allocation counting is not supported by this JVM");
+            return;
+        }
+        threads.setThreadAllocatedMemoryEnabled(true);
+
+        CanvasPanel panel = new CanvasPanel(new CanvasPanel.EditorDelegate() {
+            @Override
+            public String getMode() {
+                return ToolMode.SELECT.getName();
+            }
+
+            @Override
+            public void updateEditMenuForSelection(List<Shape> selectedShapes) {
+            }
+        });
+        panel.setSize(800, 600);
+        WorkflowModel model = panel.getModel();
+
+        // 被拖曳物件周圍有互相重疊的shape，拖曳時會經過空間索引的格子邊界和重疊群組
+        for (int i = 0; i < 20; i++) {
+            for (int j = 0; j < 20; j++) {
+                add(model, new RectangleShape(i * 60, j * 60, 80, 80));
+            }
+        }
+        Shape dragged = add(model, new RectangleShape(400, 400, 100, 80));
+        Shape target = add(model, new RectangleShape(1500, 100, 100, 80));
+        // 被拖曳的shape連到右上角的shape；另一條連線橫越拖曳的範圍，shape經過時要重新繞線
+        link(model, dragged, 500, 440, target, 1500, 140);
+        Shape west = add(model, new RectangleShape(-300, 420, 100, 80));
+        Shape east = add(model, new RectangleShape(1500, 420, 100, 80));
+        LinkShape crossing = link(model, west, -200, 460, east, 1500, 460);
+        RerouteCounter counter = new RerouteCounter(crossing);
+        model.addModelChangeListener(counter);
+
+        boolean ok = measure(threads, panel, ToolMode.SELECT, dragged.getX() + 10, dragged.getY() + 10);
+        System.out.println("  crossing link rerouted " + counter.count + " times");
+        if (counter.count == 0) {
+            System.out.println("FAIL: the drag never rerouted the crossing link");
+            ok = false;
+        }
+        ok &= measure(threads, panel, ToolMode.ASSOCIATION, dragged.getX() + dragged.getWidth(),
+                dragged.getY() + dragged.getHeight() / 2); // 從右邊的port拉出預覽線
+        ok &= measure(threads, panel, ToolMode.RECTANGLE, 100, 100);
+
+        if (!ok) {
+            System.exit(1);
+        }
+        System.out.println("OK");
+    }
+
+    // 在 (x, y) 按下，來回拖曳，量測後在最後的位置放開
+    private static boolean measure(com.sun.management.ThreadMXBean threads, CanvasPanel panel, ToolMode mode,
+                                   int x, int y) {
+        panel.setToolMode(mode);
+        panel.dispatchToStrategy(new MouseEvent(panel, MouseEvent.MOUSE_PRESSED, 0, 0, x, y, 1, false));
+        MouseEvent drag = new MouseEvent(panel, MouseEvent.MOUSE_DRAGGED, 0, 0, x, y, 1, false);
+
+        drag(panel, drag, WARMUP_EVENTS);
+        long threadId = Thread.currentThread().getId();
+        long before = threads.getThreadAllocatedBytes(threadId);
+        drag(panel, drag, MEASURED_EVENTS);
+        long allocated = threads.getThreadAllocatedBytes(threadId) - before;
+
+        panel.dispatchToStrategy(new MouseEvent(panel, MouseEvent.MOUSE_RELEASED, 0, 0,
+                drag.getX(), drag.getY(), 1, false));
+
+        System.out.println(mode.getName() + ": " + MEASURED_EVENTS + " drag events allocated " + allocated + " bytes");
+        if (allocated > ALLOWED_BYTES) {
+            System.out.println("FAIL: the " + mode.getName() + " drag path allocates");
+            return false;
+        }
+        return true;
+    }
+
+    // 來回拖曳 ±300 像素，會跨過空間索引的格子並經過其他shape
+    private static void drag(CanvasPanel panel, MouseEvent drag, int events) {
+        int step = 3;
+        int travelled = 0;
+        for (int i = 0; i < events; i++) {
+            if (travelled == 100 || travelled == -100) {
+                step = -step;
+            }
+            travelled += step > 0 ? 1 : -1;
+            drag.translatePoint(step, step / 3);
+            panel.dispatchToStrategy(drag);
+        }
+    }
+
+    private static Shape add(WorkflowModel model, Shape shape) {
+        model.assignDepthByOverlapGroup(shape);
+        model.addShape(shape);
+        return shape;
+    }
+
+    // 連線兩端接在最接近指定座標的port上
+    private static LinkShape link(WorkflowModel model, Shape from, int fromX, int fromY, Shape to, int toX, int toY) {
+        LinkShape link = new LinkShape(from, to, nearestPort(from, fromX, fromY), nearestPort(to, toX, toY),
+                LinkType.ASSOCIATION, null);
+        model.addLink(link);
+        return link;
+    }
+
+    private static Point nearestPort(Shape shape, int x, int y) {
+        int best = 0;
+        long bestDist = Long.MAX_VALUE;
+        for (int i = 0; i < shape.getPortCount(); i++) {
+            long dx = shape.getPortX(i) - x;
+            long dy = shape.getPortY(i) - y;
+            if (dx * dx + dy * dy < bestDist) {
+                bestDist = dx * dx + dy * dy;
+                best = i;
+            }
+        }
+        return new Point(shape.getPortX(best), shape.getPortY(best));
+    }
+
+    // 計算橫越的連線被重新繞線的次數，確認拖曳確實經過重新繞線的路徑
+    private static class RerouteCounter implements ModelChangeListener {
+        private final LinkShape link;
+        private int count = 0;
+
+        RerouteCounter(LinkShape link) {
+            this.link = link;
+        }
+
+        @Override
+        public void onModelChanged(ModelChangeSet changes) {
+            if (changes.getModifiedLinks().contains(link)) {
+                count++;
+            }
+        }
+
+        @Override
+        public void onShapeAdded(Shape shape, Rectangle damage) {
+        }
+
+        @Override
+        public void onShapeRemoved(Shape shape, Rectangle damage) {
+        }
+
+        @Override
+        public void onShapeModified(Shape shape, Rectangle damage) {
+        }
+
+        @Override
+        public void onLinkAdded(LinkShape link, Rectangle damage) {
+        }
+
+        @Override
+        public void onLinkRemoved(LinkShape link, Rectangle damage) {
+        }
+
+        @Override
+        public void onLinkModified(LinkShape link, Rectangle damage) {
+            if (link == this.link) {
+                count++;
+            }
+        }
+
+        @Override
+        public void onSelectionChanged(List<Shape> selectedShapes, Rectangle damage) {
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package model;
+
+import java.awt.Rectangle;
+import java.util.ArrayList;
+import java.util.List;
+
+import shape.RectangleShape;
+import shape.Shape;
+
+// 點擊順序檢查：深度用完重新編號後，相鄰的層會合併成同一個深度
+// 點擊兩個重疊shape的交集處時，選到的必須是繪製在最上層的那一個，不一致就失敗(exit code 1)
+// 執行：java -cp <classes> model.HitOrderCheck
+public class HitOrderCheck {
+    private static final int PAIRS = 150; // 300 個shape，超過 0~99 的深度範圍，會重新編號好幾次
+
+    public static void main(String[] args) {
+        WorkflowModel model = new WorkflowModel();
+        List<Shape> lower = new ArrayList<>();
+        List<Shape> upper = new ArrayList<>();
+        // 每一對是一個獨立的重疊群組，後加入的在上層，和建立shape時一樣用 allocateFrontDepth 分配深度
+        for (int i = 0; i < PAIRS; i++) {
+            lower.add(add(model, new RectangleShape(i * 100, 0, 60, 60)));
+            upper.add(add(model, new RectangleShape(i * 100 + 30, 0, 60, 60)));
+        }
+
+        int merged = 0;
+        int mismatches = 0;
+        List<Shape> painted = new ArrayList<>();
+        Rectangle point = new Rectangle();
+        for (int i = 0; i < PAIRS; i++) {
+            if (lower.get(i).getDepth() == upper.get(i).getDepth()) {
+                merged++;
+            }
+            int x = i * 100 + 45; // 兩個shape的交集
+            int y = 30;
+            point.setBounds(x, y, 1, 1);
+            painted.clear();
+            model.getShapesInArea(point, painted); // 由下往上的繪製順序
+            Shape expected = painted.get(painted.size() - 1);
+            Shape hit = model.getTopMostShapeAt(x, y);
+            if (hit != expected) {
+                mismatches++;
+                System.out.println("pair " + i + " (depth " + lower.get(i).getDepth() + "/" + upper.get(i).getDepth()
+                        + "): hit " + describe(hit, lower.get(i), upper.get(i)) + ", painted on top "
+                        + describe(expected, lower.get(i), upper.get(i)));
+            }
+        }
+
+        System.out.println(merged + " of " + PAIRS + " pairs share a depth after renumbering");
+        if (merged == 0) {
+            System.out.println("FAIL: renumbering did not merge any levels, the check did not exercise ties");
+            System.exit(1);
+        }
+        if (mismatches > 0) {
+            System.out.println("FAIL: " + mismatches + " clicks picked a shape painted underneath");
+            System.exit(1);
+        }
+        System.out.println("OK");
+    }
+
+    private static Shape add(WorkflowModel model, Shape shape) {
+        shape.setDepth(model.allocateFrontDepth()); // 超出 0~99 時model會先重新編號
+        model.addShape(shape);
+        return shape;
+    }
+
+    private static String describe(Shape shape, Shape lower, Shape upper) {
+        return shape == lower ? "lower" : shape == upper ? "upper" : String.valueOf(shape);
+    }
+}
@@ -0,0 +1,132 @@
+package util;
+
+import java.awt.Point;
+
+// 已連線port的集合，用參考計數記錄有幾條連線接在同一個座標上
+// 使用 open addressing 的 long -> int 表，查詢不需要建立物件
+public class LinkedPortSet {
+    private static final long EMPTY = Long.MIN_VALUE;
+    private static final int INITIAL_CAPACITY = 64;
+
+    private long[] keys;
+    private int[] counts;
+    private int size = 0;
+
+    public LinkedPortSet() {
+        allocate(INITIAL_CAPACITY);
+    }
+
+    public void add(Point p) { // 增加一次參考
+        if (p != null) {
+            add(p.x, p.y);
+        }
+    }
+
+    public void add(int x, int y) {
+        if ((size + 1) * 2 > keys.length) {
+            rehash(keys.length * 2);
+        }
+        long key = key(x, y);
+        int slot = indexOf(key);
+        if (keys[slot] == EMPTY) {
+            keys[slot] = key;
+            size++;
+        }
+        counts[slot]++;
+    }
+
+    public void remove(Point p) { // 減少一次參考，歸零時移除
+        if (p != null) {
+            remove(p.x, p.y);
+        }
+    }
+
+    public void remove(int x, int y) {
+        int slot = indexOf(key(x, y));
+        if (keys[slot] == EMPTY) {
+            return;
+        }
+        if (--counts[slot] == 0) {
+            deleteSlot(slot);
+            size--;
+        }
+    }
+
+    public boolean contains(Point p) { // 座標上是否有連線
+        return p != null && contains(p.x, p.y);
+    }
+
+    public boolean contains(int x, int y) {
+        return keys[indexOf(key(x, y))] != EMPTY;
+    }
+
+    public int size() { // 不同座標的數量
+        return size;
+    }
+
+    public void clear() {
+        allocate(INITIAL_CAPACITY);
+        size = 0;
+    }
+
+    private void allocate(int capacity) {
+        keys = new long[capacity];
+        counts = new int[capacity];
+        java.util.Arrays.fill(keys, EMPTY);
+    }
+
+    private int indexOf(long key) { // 線性探測，回傳key所在或應放入的位置
+        int mask = keys.length - 1;
+        int slot = hash(key) & mask;
+        while (keys[slot] != EMPTY && keys[slot] != key) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    // 刪除後把後面同一串的元素往前移，避免留下墓碑
+    private void deleteSlot(int slot) {
+        int mask = keys.length - 1;
+        int hole = slot;
+        keys[hole] = EMPTY;
+        counts[hole] = 0;
+        int next = hole;
+        while (true) {
+            next = (next + 1) & mask;
+            if (keys[next] == EMPTY) {
+                return;
+            }
+            int home = hash(keys[next]) & mask;
+            boolean stays = hole <= next ? (hole < home && home <= next) : (hole < home || home <= next);
+            if (!stays) {
+                keys[hole] = keys[next];
+                counts[hole] = counts[next];
+                keys[next] = EMPTY;
+                counts[next] = 0;
+                hole = next;
+            }
+        }
+    }
+
+    private void rehash(int capacity) {
+        long[] oldKeys = keys;
+        int[] oldCounts = counts;
+        allocate(capacity);
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != EMPTY) {
+                int slot = indexOf(oldKeys[i]);
+                keys[slot] = oldKeys[i];
+                counts[slot] = oldCounts[i];
+            }
+        }
+    }
+
+    private static long key(int x, int y) {
+        return ((long) x << 32) | (y & 0xffffffffL);
+    }
+
+    private static int hash(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+}